@@ -78,22 +78,38 @@ local sectorsReadTick = 0
 local drawcallsTick = 0
 local bufi = 1
 
+-- the first sector starts with the stream header: format flags, width, height
+local header = drive.readSector(1)
+local format = string.byte(header, 1)
+local frame_w = string.byte(header, 2)
+local frame_h = string.byte(header, 3)
+-- sector-aligned streams keep the header to itself and start every
+-- other sector with u16 frames starting, u16 payload bytes used
+local aligned = (format & 0x02) ~= 0
+local compressed = (format & 0x04) ~= 0
+if aligned then
+	sec = 2
+end
+
 local function addToBuf()
-	table.insert(buf, drive.readSector(sec))
+	local data = drive.readSector(sec)
+	if aligned then
+		local used = string.byte(data, 3) | (string.byte(data, 4) << 8)
+		data = string.sub(data, 5, 4 + used)
+	end
+	table.insert(buf, data)
 	sec = sec + 1
 	sectorsReadTick = sectorsReadTick + 1
 end
 
-local function r8()
-	if (#buf > 0) and (bufi > #(buf[1])) then
-		table.remove(buf, 1)
-		bufi = 1
-	end
-
-	if (#buf == 0) then
-		addToBuf()
-		if (#buf == 0) then
-			return 0
+local function rawr8()
+	while (#buf == 0) or (bufi > #(buf[1])) do
+		if #buf > 0 then
+			table.remove(buf, 1)
+			bufi = 1
+		end
+		if #buf == 0 then
+			addToBuf()
 		end
 	end
 
@@ -102,6 +118,44 @@ local function r8()
 	return v
 end
 
+-- LZ: control c < 0x80 is followed by c+1 literals, otherwise
+-- copy (c & 0x7F)+4 bytes from a u16 distance back
+local lzWindow = {}
+local lzPos = 0
+local lzLiterals = 0
+local lzCopies = 0
+local lzDistance = 0
+
+local function lzr8()
+	if (lzLiterals == 0) and (lzCopies == 0) then
+		local c = rawr8()
+		if c < 0x80 then
+			lzLiterals = c + 1
+		else
+			lzCopies = (c & 0x7F) + 4
+			lzDistance = rawr8()
+			lzDistance = lzDistance | (rawr8() << 8)
+		end
+	end
+
+	local v
+	if lzLiterals > 0 then
+		v = rawr8()
+		lzLiterals = lzLiterals - 1
+	else
+		v = lzWindow[(lzPos - lzDistance) & 4095]
+		lzCopies = lzCopies - 1
+	end
+	lzWindow[lzPos] = v
+	lzPos = (lzPos + 1) & 4095
+	return v
+end
+
+local r8 = rawr8
+if compressed then
+	r8 = lzr8
+end
+
 local function r16()
 	local x = r8()
 	return x | (r8() << 8)
@@ -115,9 +169,11 @@ local curr_bg = 0
 local curr_fg = 0
 local frame = 0
 
-r8()
-local frame_w = r8()
-local frame_h = r8()
+if not aligned then
+	rawr8()
+	rawr8()
+	rawr8()
+end
 local frame_offset = computer.uptime()
 local r_player = component.record_player
 
@@ -190,6 +246,41 @@ local function cmd_set(vertical,x,y,bg,fg,qs)
 	drawcallsTick = drawcallsTick + 1
 end
 
+local function read_rle()
+	local qs = {}
+	local adding = true
+	while adding do
+		local cmd = r8(file)
+		if cmd == 0x00 then adding = false
+		elseif cmd >= 0xA1 and cmd <= 0xFF then
+			local v = r8(file)
+			for i=1,(cmd-0xA0) do table.insert(qs,v) end
+		elseif cmd >= 0x01 and cmd <= 0xA0 then
+			for i=1,cmd do
+				table.insert(qs,r8(file))
+			end
+		end
+	end
+	return qs
+end
+
+local function cmd_block(x,y,w,h,bg,fg,qs)
+	-- one set per row, or per column if that is fewer
+	if h <= w then
+		for j=0,h-1 do
+			cmd_set(false,x,y+j,bg,fg,{table.unpack(qs,j*w+1,j*w+w)})
+		end
+	else
+		for i=0,w-1 do
+			local col = {}
+			for j=0,h-1 do
+				col[j+1] = qs[j*w+i+1]
+			end
+			cmd_set(true,x+i,y,bg,fg,col)
+		end
+	end
+end
+
 while true do
 	local cmd = r8(file)
 	if cmd == 0x10 then
@@ -229,21 +320,17 @@ while true do
 		local y = r8(file)	
 		local bg = r8(file)	
 		local fg = r8(file)
-		local qs = {}
-		local adding = true
-		while adding do
-			local cmd = r8(file)
-			if cmd == 0x00 then adding = false
-			elseif cmd >= 0xA1 and cmd <= 0xFF then
-				local v = r8(file)
-				for i=1,(cmd-0xA0) do table.insert(qs,v) end
-			elseif cmd >= 0x01 and cmd <= 0xA0 then
-				for i=1,cmd do
-					table.insert(qs,r8(file))
-				end
-			end
-		end
+		local qs = read_rle()
 		cmd_set(vertical,x,y,bg,fg,qs)
+	elseif cmd == 0x30 then
+		local x = r8(file)
+		local y = r8(file)
+		local w = r8(file)
+		local h = r8(file)
+		local bg = r8(file)
+		local fg = r8(file)
+		local qs = read_rle()
+		cmd_block(x,y,w,h,bg,fg,qs)
 	elseif cmd == 0x01 then
 		if frame == 1 then
 			if r_player ~= nil then
@@ -19,13 +19,9 @@
 
 package pl.asie.nadeshicodec;
 
-import com.google.common.collect.ImmutableMap;
 import pl.asie.nadeshicodec.codec.CodecManager;
-import pl.asie.nadeshicodec.codec.CodecUtils;
-import pl.asie.nadeshicodec.codec.VideoReaderFFMPEG;
-import pl.asie.nadeshicodec.codec.nadeshiko.CodecNadeshiko;
+import pl.asie.nadeshicodec.frontend.NCFrontendCLI;
 import pl.asie.nadeshicodec.frontend.NCFrontendSwing;
-import pl.asie.nadeshicodec.util.DitherMatrix;
 import pl.asie.nadeshicodec.util.colorspace.Colorspaces;
 
 import java.io.File;
@@ -34,28 +30,17 @@ public class Main {
     public static void main(String[] args) throws Exception {
         Colorspaces.init();
 
-        if (args.length >= 2) {
-            File in = new File(args[0]);
-            File out = new File(args[1]);
-
-            CodecManager manager = new CodecManager();
-            manager.setReaderCodec(
-                    new VideoReaderFFMPEG(in, 20, System.out::println, CodecUtils::scaleDimensionsDefault),
-                    new CodecNadeshiko(new DitherMatrix(new int[]{0,2,3,1}))
-            );
-            manager.getOutputFrame(manager.getFrameCount() - 1, (a) -> {
-                System.out.println("Rendering frame " + a);
-            });
-            manager.write(out);
+        if (NCFrontendCLI.isCommandLine(args)) {
+            int code = NCFrontendCLI.run(args);
+            if (code != 0) {
+                System.exit(code);
+            }
             return;
         }
 
         NCFrontendSwing frontend = new NCFrontendSwing("Nadeshicodec",
                 new CodecManager(),
-                ImmutableMap.of(
-                        "none", new DitherMatrix(),
-                        "2x2", new DitherMatrix(new int[]{0,2,3,1})
-                ), "2x2"
+                NCFrontendCLI.DITHER_OPTIONS, "2x2"
         );
 
         if (args.length > 0) {
@@ -64,19 +49,5 @@ public class Main {
                 frontend.loadFile(f);
             }
         }
-
-        while (true) {
-            long time = System.currentTimeMillis();
-
-            if (frontend.isAutoPlayback() && frontend.getFrame() < (frontend.getFrameCount() - 1)) {
-                frontend.setFrame(frontend.getFrame() + 1);
-            }
-
-            time = System.currentTimeMillis() - time;
-
-            if (time < 50) {
-                Thread.sleep(50 - time);
-            }
-        }
     }
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.asie.nadeshicodec.codec;
+
+import java.util.Arrays;
+
+/**
+ * Spreads a drawing budget over frames according to their estimated
+ * complexity, without letting the player fall more than a fixed amount
+ * behind its sustained rate.
+ */
+public final class BudgetPlanner {
+	private BudgetPlanner() {
+
+	}
+
+	public static int[] plan(double[] complexity, int averageBudget) {
+		return plan(complexity, averageBudget, averageBudget / 4, averageBudget * 2, averageBudget * 2);
+	}
+
+	public static int[] plan(double[] complexity, int averageBudget, int minBudget, int maxBudget, int maxDebt) {
+		int n = complexity.length;
+		int[] budgets = new int[n];
+		if (n == 0) {
+			return budgets;
+		}
+
+		// square root keeps a few very busy frames from starving the rest
+		double[] weights = new double[n];
+		double mean = 0;
+		for (int i = 0; i < n; i++) {
+			weights[i] = Math.sqrt(Math.max(0, complexity[i]));
+			mean += weights[i];
+		}
+		mean /= n;
+
+		double[] targets = new double[n];
+		if (mean <= 0) {
+			Arrays.fill(targets, averageBudget);
+		} else {
+			// rescale after clamping until the total matches
+			double scale = averageBudget / mean;
+			for (int iter = 0; iter < 8; iter++) {
+				double total = 0;
+				for (int i = 0; i < n; i++) {
+					targets[i] = Math.max(minBudget, Math.min(maxBudget, weights[i] * scale));
+					total += targets[i];
+				}
+				if (total <= 0 || Math.abs(total - (double) averageBudget * n) < 1) break;
+				scale *= (double) averageBudget * n / total;
+			}
+		}
+
+		// leaky bucket: overspending is paid back by the following frames
+		int debt = 0;
+		for (int i = 0; i < n; i++) {
+			int b = (int) Math.round(targets[i]);
+			b = Math.min(b, averageBudget + maxDebt - debt);
+			b = Math.max(b, Math.min(minBudget, averageBudget));
+			budgets[i] = b;
+			debt = Math.max(0, debt + b - averageBudget);
+		}
+
+		return budgets;
+	}
+}
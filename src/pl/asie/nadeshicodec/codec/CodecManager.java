@@ -19,19 +19,32 @@
 
 package pl.asie.nadeshicodec.codec;
 
+import pl.asie.nadeshicodec.codec.container.FrameIndex;
 import pl.asie.nadeshicodec.util.DitherMatrix;
 import pl.asie.nadeshicodec.util.oc.OCUtils;
 
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
 import java.util.function.Consumer;
 
 public class CodecManager {
 	private IVideoReader reader;
 	private ICodec codec;
 	private boolean showOCInput;
+	private int[] frameBudgets;
+
+	private static final int CHECKPOINT_MAGIC = 0x4E434B50;
+	private static final int CHECKPOINT_VERSION = 1;
+	private File checkpointFile;
+	private int checkpointInterval;
+	private String checkpointKey;
+	private int checkpointedFrames;
 
 	public CodecManager() {
 		showOCInput = true;
@@ -44,32 +57,227 @@ public class CodecManager {
 
 	public void setCodec(ICodec codec) {
 		this.codec = codec;
+		this.frameBudgets = null;
+		this.checkpointedFrames = 0;
 		if (this.codec == null) {
 			throw new RuntimeException("Cannot have null codec!");
 		}
 	}
 
 	public void write(File f) throws IOException {
-		FileOutputStream stream = new FileOutputStream(f);
-		codec.write(stream);
+		try (FileOutputStream stream = new FileOutputStream(f)) {
+			codec.write(stream);
+		}
+
+		Optional<FrameIndex> index = codec.getFrameIndex();
+		if (index.isPresent()) {
+			try (FileOutputStream stream = new FileOutputStream(FrameIndex.getIndexFile(f))) {
+				index.get().write(stream);
+			}
+		}
+	}
+
+	/**
+	 * First pass: estimate every frame's complexity and plan per-frame
+	 * budgets around the codec's average budget.
+	 */
+	public void analyze() {
+		if (reader == null || codec.getFrameBudget() <= 0 || frameBudgets != null) {
+			return;
+		}
+
+		long time = System.currentTimeMillis();
+		double[] complexity = codec.estimateComplexity(reader);
+		int average = codec.getFrameBudget();
+		// the first frame is drawn whole regardless, so it is left out of the plan
+		frameBudgets = new int[complexity.length];
+		if (complexity.length > 0) {
+			frameBudgets[0] = average;
+			int[] planned = BudgetPlanner.plan(Arrays.copyOfRange(complexity, 1, complexity.length), average);
+			System.arraycopy(planned, 0, frameBudgets, 1, planned.length);
+		}
+		System.out.println("Analyzed " + complexity.length + " frames in " + (System.currentTimeMillis() - time) + " ms");
 	}
 
 	public int getFrameCount() {
 		return reader != null ? reader.getFrameCount() : 0;
 	}
 
+	/**
+	 * @return The number of frames encoded so far.
+	 */
+	public int getOutputFrameCount() {
+		return codec != null ? codec.getFrameCount() : 0;
+	}
+
 	public BufferedImage getInputFrame(int frame) {
-		return showOCInput ? codec.getPreprocessedFrame(reader, frame) : reader.getFrame(frame);
+		return getInputFrame(frame, null);
+	}
+
+	/**
+	 * @param reuse An image from an earlier call, no longer used, which may be drawn into instead of a new one.
+	 */
+	public BufferedImage getInputFrame(int frame, BufferedImage reuse) {
+		return showOCInput ? codec.getPreprocessedFrame(reader, frame, reuse) : reader.getFrame(frame);
 	}
 
 	public BufferedImage getOutputFrame(int frame, Consumer<Integer> frameRenderConsumer) {
+		return getOutputFrame(frame, frameRenderConsumer, null);
+	}
+
+	/**
+	 * @param reuse An image from an earlier call, no longer used, which may be drawn into instead of a new one.
+	 */
+	public BufferedImage getOutputFrame(int frame, Consumer<Integer> frameRenderConsumer, BufferedImage reuse) {
 		while (codec.getFrameCount() <= frame) {
 			long time = System.currentTimeMillis();
 			frameRenderConsumer.accept(codec.getFrameCount() + 1);
-			codec.addFrame(reader.getFrame(codec.getFrameCount()));
+			int next = codec.getFrameCount();
+			List<BufferedImage> lookahead = new ArrayList<>();
+			for (int i = 1; i <= codec.getLookahead() && next + i < reader.getFrameCount(); i++) {
+				lookahead.add(reader.getFrame(next + i));
+			}
+			if (frameBudgets != null && next < frameBudgets.length) {
+				codec.setNextFrameBudget(frameBudgets[next]);
+			}
+			codec.addFrame(reader.getFrame(next), lookahead);
 			System.out.println("Frame " + codec.getFrameCount() + " render time = " + (System.currentTimeMillis() - time) + " ms");
+
+			if (checkpointFile != null && codec.getFrameCount() % checkpointInterval == 0) {
+				try {
+					writeCheckpoint();
+				} catch (IOException e) {
+					// losing a checkpoint is no reason to stop encoding
+					System.out.println("Could not write checkpoint: " + e.getMessage());
+				}
+			}
 		}
 
-		return codec.getFrame(frame);
+		return codec.getFrame(frame, reuse);
+	}
+
+	/**
+	 * Saves the encoder state to file every interval frames, with the encoded
+	 * frames appended to file.data. A later encode with the same key (which
+	 * should cover the input and every encoding parameter) can then resume.
+	 * Only codecs implementing {@link ICheckpointable} are saved.
+	 */
+	public void setCheckpoint(File file, int interval, String key) {
+		this.checkpointFile = interval > 0 ? file : null;
+		this.checkpointInterval = interval;
+		this.checkpointKey = key;
+	}
+
+	private File getCheckpointDataFile() {
+		return new File(checkpointFile.getPath() + ".data");
+	}
+
+	private void writeCheckpoint() throws IOException {
+		if (!(codec instanceof ICheckpointable)) {
+			return;
+		}
+
+		ICheckpointable checkpointable = (ICheckpointable) codec;
+		int frames = codec.getFrameCount();
+
+		// frames are only ever appended; data past the length recorded in the state is ignored
+		try (FileOutputStream fileStream = new FileOutputStream(getCheckpointDataFile(), checkpointedFrames > 0)) {
+			DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(fileStream));
+			for (int i = checkpointedFrames; i < frames; i++) {
+				byte[] data = checkpointable.getFrameData(i);
+				stream.writeInt(data.length);
+				stream.write(data);
+				codec.getFrameStatistics(i).orElseThrow(() -> new IOException("Codec has no frame statistics!")).write(stream);
+			}
+			stream.flush();
+			fileStream.getChannel().force(true);
+		}
+
+		File tempFile = new File(checkpointFile.getPath() + ".tmp");
+		try (FileOutputStream fileStream = new FileOutputStream(tempFile)) {
+			DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(fileStream));
+			stream.writeInt(CHECKPOINT_MAGIC);
+			stream.writeInt(CHECKPOINT_VERSION);
+			stream.writeUTF(checkpointKey);
+			stream.writeInt(frames);
+			stream.writeLong(getCheckpointDataFile().length());
+			stream.writeInt(frameBudgets != null ? frameBudgets.length : -1);
+			if (frameBudgets != null) {
+				for (int b : frameBudgets) {
+					stream.writeInt(b);
+				}
+			}
+			checkpointable.writeState(stream);
+			stream.flush();
+			fileStream.getChannel().force(true);
+		}
+		Files.move(tempFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		checkpointedFrames = frames;
+		System.out.println("Checkpoint written at frame " + frames);
+	}
+
+	/**
+	 * Restores the last checkpoint into a fresh codec, if one exists and its
+	 * key matches. A checkpoint with a different key is deleted.
+	 *
+	 * @return The number of frames restored.
+	 */
+	public int resume() throws IOException {
+		if (checkpointFile == null || !checkpointFile.exists() || !(codec instanceof ICheckpointable) || codec.getFrameCount() > 0) {
+			return 0;
+		}
+
+		try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)))) {
+			if (stream.readInt() != CHECKPOINT_MAGIC || stream.readInt() != CHECKPOINT_VERSION) {
+				System.out.println("Unknown checkpoint format, starting over");
+				clearCheckpoint();
+				return 0;
+			}
+			if (!checkpointKey.equals(stream.readUTF())) {
+				System.out.println("Checkpoint was made with different parameters, starting over");
+				clearCheckpoint();
+				return 0;
+			}
+
+			int frames = stream.readInt();
+			long dataLength = stream.readLong();
+			int budgetCount = stream.readInt();
+			int[] budgets = budgetCount >= 0 ? new int[budgetCount] : null;
+			for (int i = 0; i < budgetCount; i++) {
+				budgets[i] = stream.readInt();
+			}
+
+			// drop frames appended after the last complete checkpoint
+			try (RandomAccessFile dataFile = new RandomAccessFile(getCheckpointDataFile(), "rw")) {
+				if (dataFile.length() < dataLength) {
+					throw new IOException("Checkpoint data is truncated!");
+				}
+				dataFile.setLength(dataLength);
+			}
+
+			List<byte[]> frameData = new ArrayList<>(frames);
+			List<FrameStatistics> frameStatistics = new ArrayList<>(frames);
+			try (DataInputStream dataStream = new DataInputStream(new BufferedInputStream(new FileInputStream(getCheckpointDataFile())))) {
+				for (int i = 0; i < frames; i++) {
+					byte[] data = new byte[dataStream.readInt()];
+					dataStream.readFully(data);
+					frameData.add(data);
+					frameStatistics.add(FrameStatistics.read(dataStream));
+				}
+			}
+
+			((ICheckpointable) codec).readState(stream, frameData, frameStatistics);
+			frameBudgets = budgets;
+			checkpointedFrames = frames;
+			return frames;
+		}
+	}
+
+	public void clearCheckpoint() {
+		if (checkpointFile != null) {
+			checkpointFile.delete();
+			getCheckpointDataFile().delete();
+		}
 	}
 }
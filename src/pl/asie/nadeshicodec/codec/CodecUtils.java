@@ -21,13 +21,22 @@ package pl.asie.nadeshicodec.codec;
 
 public class CodecUtils {
 	public static int[] scaleDimensionsDefault(int[] dims) {
+		return scaleDimensions(dims, 320, 200);
+	}
+
+	/**
+	 * Fits a video into a maxWidth x maxHeight pixel area (2x4 pixels per
+	 * character), keeping the aspect ratio. Tall videos may go past maxHeight
+	 * as long as the area stays the same.
+	 */
+	public static int[] scaleDimensions(int[] dims, int maxWidth, int maxHeight) {
 		boolean ignoreAspectRatio = false;
 		float x = (ignoreAspectRatio ? 1.6f : (float) dims[0] / dims[1]);
 		float y = 1.0f;
 		float a = Math.min(Math.min(
-				(float) 320 / x,
-				(float) 640 / y),
-				(float) Math.sqrt((float) (320 * 200) / (x * y)));
+				(float) maxWidth / x,
+				(float) (maxWidth * 2) / y),
+				(float) Math.sqrt((float) (maxWidth * maxHeight) / (x * y)));
 		int w = (int) (x * a) & (~1);
 		int h = (int) (y * a) & (~3);
 		int rw = (int) (h * x) & (~1);
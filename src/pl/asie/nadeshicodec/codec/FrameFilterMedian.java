@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.nadeshicodec.codec;
+
+import java.awt.image.BufferedImage;
+import java.util.stream.IntStream;
+
+/**
+ * Per-channel median filter over a (2r+1)x(2r+1) window, using Huang's
+ * sliding histogram so every pixel costs O(r) instead of a sort. Rows are
+ * filtered in parallel.
+ */
+public class FrameFilterMedian implements IFrameFilter {
+	private final int radius;
+
+	public FrameFilterMedian(int radius) {
+		if (radius < 1) {
+			throw new IllegalArgumentException("Radius must be at least 1!");
+		}
+		this.radius = radius;
+	}
+
+	private static int clamp(int x, int w) {
+		if (x <= 0) return 0;
+		else if (x >= w) return w-1;
+		else return x;
+	}
+
+	@Override
+	public BufferedImage filter(BufferedImage input) {
+		int width = input.getWidth();
+		int height = input.getHeight();
+		int[] src = input.getRGB(0, 0, width, height, null, 0, width);
+		int[] dst = new int[src.length];
+		int half = ((radius * 2 + 1) * (radius * 2 + 1)) / 2;
+
+		IntStream.range(0, height).parallel().forEach((y) -> {
+			int[][] hist = new int[3][256];
+			int[] median = new int[3];
+			// amount of window values below the current median, per channel
+			int[] below = new int[3];
+
+			for (int iy = y - radius; iy <= y + radius; iy++) {
+				int row = clamp(iy, height) * width;
+				for (int ix = -radius; ix <= radius; ix++) {
+					int v = src[row + clamp(ix, width)];
+					hist[0][(v >> 16) & 0xFF]++;
+					hist[1][(v >> 8) & 0xFF]++;
+					hist[2][v & 0xFF]++;
+				}
+			}
+
+			for (int c = 0; c < 3; c++) {
+				int m = 0;
+				int sum = 0;
+				while (sum + hist[c][m] <= half) {
+					sum += hist[c][m++];
+				}
+				median[c] = m;
+				below[c] = sum;
+			}
+
+			for (int x = 0; x < width; x++) {
+				if (x > 0) {
+					int xOut = clamp(x - radius - 1, width);
+					int xIn = clamp(x + radius, width);
+					for (int iy = y - radius; iy <= y + radius; iy++) {
+						int row = clamp(iy, height) * width;
+						int vOut = src[row + xOut];
+						int vIn = src[row + xIn];
+						for (int c = 0; c < 3; c++) {
+							int shift = 16 - c * 8;
+							int o = (vOut >> shift) & 0xFF;
+							int i = (vIn >> shift) & 0xFF;
+							hist[c][o]--;
+							hist[c][i]++;
+							if (o < median[c]) below[c]--;
+							if (i < median[c]) below[c]++;
+						}
+					}
+
+					for (int c = 0; c < 3; c++) {
+						int[] h = hist[c];
+						int m = median[c];
+						int sum = below[c];
+						while (sum > half) {
+							sum -= h[--m];
+						}
+						while (sum + h[m] <= half) {
+							sum += h[m++];
+						}
+						median[c] = m;
+						below[c] = sum;
+					}
+				}
+
+				dst[y * width + x] = (median[0] << 16) | (median[1] << 8) | median[2];
+			}
+		});
+
+		BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		result.setRGB(0, 0, width, height, dst, 0, width);
+		return result;
+	}
+}
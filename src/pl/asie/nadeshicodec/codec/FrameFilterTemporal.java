@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.nadeshicodec.codec;
+
+import java.awt.image.BufferedImage;
+import java.util.stream.IntStream;
+
+/**
+ * Motion-compensated temporal denoiser. Every 8x8 block is matched against
+ * the previous source frames; where a close match exists, its pixels are
+ * averaged in, so static noise stops making the quantizer flip cells.
+ * Pixels which still differ too much after compensation are left alone.
+ */
+public class FrameFilterTemporal implements IFrameFilter {
+	private static final int BLOCK = 8;
+
+	private final int[][] history;
+	private final int searchRadius;
+	private final int threshold;
+	private int historyCount, historyPos;
+	private int width, height;
+
+	/**
+	 * @param frames The number of previous frames to blend with.
+	 * @param searchRadius The motion search range, in pixels.
+	 * @param threshold The largest mean per-channel difference of a block (0-255) still treated as noise.
+	 */
+	public FrameFilterTemporal(int frames, int searchRadius, int threshold) {
+		this.history = new int[frames][];
+		this.searchRadius = searchRadius;
+		this.threshold = threshold;
+	}
+
+	public FrameFilterTemporal(int frames) {
+		this(frames, 4, 10);
+	}
+
+	private static int diff(int a, int b) {
+		return Math.abs(((a >> 16) & 0xFF) - ((b >> 16) & 0xFF))
+				+ Math.abs(((a >> 8) & 0xFF) - ((b >> 8) & 0xFF))
+				+ Math.abs((a & 0xFF) - (b & 0xFF));
+	}
+
+	private int getSAD(int[] src, int[] ref, int bx, int by, int bw, int bh, int dx, int dy, int limit) {
+		int sad = 0;
+		for (int y = by; y < by + bh; y++) {
+			int p = y * width;
+			int pr = (y + dy) * width + dx;
+			for (int x = bx; x < bx + bw; x++) {
+				sad += diff(src[p + x], ref[pr + x]);
+			}
+			if (sad >= limit) {
+				return sad;
+			}
+		}
+		return sad;
+	}
+
+	private void filterBlock(int[] src, int[] dst, int bx, int by) {
+		int bw = Math.min(BLOCK, width - bx);
+		int bh = Math.min(BLOCK, height - by);
+		int[] sums = new int[bw * bh * 3];
+		int[] counts = new int[bw * bh];
+		int blockLimit = threshold * 3 * bw * bh;
+		int pixelLimit = threshold * 3 * 2;
+
+		for (int i = 0; i < historyCount; i++) {
+			int[] ref = history[(historyPos - 1 - i + history.length) % history.length];
+
+			int bestSad = Integer.MAX_VALUE;
+			int bestDx = 0, bestDy = 0;
+			for (int dy = Math.max(-searchRadius, -by); dy <= Math.min(searchRadius, height - bh - by); dy++) {
+				for (int dx = Math.max(-searchRadius, -bx); dx <= Math.min(searchRadius, width - bw - bx); dx++) {
+					int sad = getSAD(src, ref, bx, by, bw, bh, dx, dy, bestSad);
+					// prefer shorter vectors on ties
+					if (sad < bestSad || (sad == bestSad && Math.abs(dx) + Math.abs(dy) < Math.abs(bestDx) + Math.abs(bestDy))) {
+						bestSad = sad;
+						bestDx = dx;
+						bestDy = dy;
+					}
+				}
+			}
+
+			if (bestSad > blockLimit) {
+				continue;
+			}
+
+			for (int y = 0; y < bh; y++) {
+				for (int x = 0; x < bw; x++) {
+					int v = src[(by + y) * width + bx + x];
+					int r = ref[(by + y + bestDy) * width + bx + x + bestDx];
+					if (diff(v, r) <= pixelLimit) {
+						int p = y * bw + x;
+						sums[p * 3] += (r >> 16) & 0xFF;
+						sums[p * 3 + 1] += (r >> 8) & 0xFF;
+						sums[p * 3 + 2] += r & 0xFF;
+						counts[p]++;
+					}
+				}
+			}
+		}
+
+		for (int y = 0; y < bh; y++) {
+			for (int x = 0; x < bw; x++) {
+				int p = y * bw + x;
+				int v = src[(by + y) * width + bx + x];
+				int count = counts[p] + 1;
+				int r = (sums[p * 3] + ((v >> 16) & 0xFF) + count / 2) / count;
+				int g = (sums[p * 3 + 1] + ((v >> 8) & 0xFF) + count / 2) / count;
+				int b = (sums[p * 3 + 2] + (v & 0xFF) + count / 2) / count;
+				dst[(by + y) * width + bx + x] = (r << 16) | (g << 8) | b;
+			}
+		}
+	}
+
+	@Override
+	public BufferedImage filter(BufferedImage input) {
+		if (input.getWidth() != width || input.getHeight() != height) {
+			width = input.getWidth();
+			height = input.getHeight();
+			historyCount = 0;
+			historyPos = 0;
+		}
+
+		int[] src = input.getRGB(0, 0, width, height, null, 0, width);
+		int[] dst = new int[src.length];
+
+		IntStream.range(0, (height + BLOCK - 1) / BLOCK).parallel().forEach((blockY) -> {
+			for (int bx = 0; bx < width; bx += BLOCK) {
+				filterBlock(src, dst, bx, blockY * BLOCK);
+			}
+		});
+
+		// keep the unfiltered source, so noise never accumulates into the reference
+		history[historyPos] = src;
+		historyPos = (historyPos + 1) % history.length;
+		historyCount = Math.min(historyCount + 1, history.length);
+
+		BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		result.setRGB(0, 0, width, height, dst, 0, width);
+		return result;
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.nadeshicodec.codec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * What the encoder did for a single frame.
+ */
+public final class FrameStatistics {
+	public static final String CSV_HEADER = "frame,commands,cost,budget,bytes,changed_cells,distortion,keyframe,time_ms";
+
+	private final int frame;
+	private final int commands;
+	private final int cost;
+	private final int budget;
+	private final int bytes;
+	private final int changedCells;
+	private final double distortion;
+	private final boolean keyframe;
+	private final long timeMs;
+
+	public FrameStatistics(int frame, int commands, int cost, int budget, int bytes, int changedCells, double distortion, boolean keyframe, long timeMs) {
+		this.frame = frame;
+		this.commands = commands;
+		this.cost = cost;
+		this.budget = budget;
+		this.bytes = bytes;
+		this.changedCells = changedCells;
+		this.distortion = distortion;
+		this.keyframe = keyframe;
+		this.timeMs = timeMs;
+	}
+
+	public int getFrame() {
+		return frame;
+	}
+
+	public int getCommands() {
+		return commands;
+	}
+
+	/**
+	 * @return The draw call cost spent on this frame.
+	 */
+	public int getCost() {
+		return cost;
+	}
+
+	public int getBudget() {
+		return budget;
+	}
+
+	public int getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return The number of cells still differing from the target after this frame.
+	 */
+	public int getChangedCells() {
+		return changedCells;
+	}
+
+	/**
+	 * @return The remaining distance to the target, in millions.
+	 */
+	public double getDistortion() {
+		return distortion;
+	}
+
+	/**
+	 * @return Whether this frame is drawn without reference to the previous one.
+	 */
+	public boolean isKeyframe() {
+		return keyframe;
+	}
+
+	public long getTimeMs() {
+		return timeMs;
+	}
+
+	public String toCsvRow() {
+		return frame + "," + commands + "," + cost + "," + budget + "," + bytes + "," + changedCells + "," + distortion + "," + (keyframe ? 1 : 0) + "," + timeMs;
+	}
+
+	public void write(DataOutputStream stream) throws IOException {
+		stream.writeInt(frame);
+		stream.writeInt(commands);
+		stream.writeInt(cost);
+		stream.writeInt(budget);
+		stream.writeInt(bytes);
+		stream.writeInt(changedCells);
+		stream.writeDouble(distortion);
+		stream.writeBoolean(keyframe);
+		stream.writeLong(timeMs);
+	}
+
+	public static FrameStatistics read(DataInputStream stream) throws IOException {
+		return new FrameStatistics(
+				stream.readInt(), stream.readInt(), stream.readInt(), stream.readInt(), stream.readInt(),
+				stream.readInt(), stream.readDouble(), stream.readBoolean(), stream.readLong()
+		);
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.nadeshicodec.codec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A codec whose state can be saved mid-encode and restored later. Encoded
+ * frame data and statistics are stored by the caller, not the codec.
+ */
+public interface ICheckpointable {
+	byte[] getFrameData(int frame);
+	void writeState(DataOutputStream stream) throws IOException;
+	void readState(DataInputStream stream, List<byte[]> frameData, List<FrameStatistics> frameStatistics) throws IOException;
+}
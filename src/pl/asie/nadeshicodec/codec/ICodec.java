@@ -19,14 +19,58 @@
 
 package pl.asie.nadeshicodec.codec;
 
+import pl.asie.nadeshicodec.codec.container.FrameIndex;
+
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
 
 public interface ICodec extends IVideoReader {
 	void addFrame(BufferedImage input);
+	default int getLookahead() {
+		return 0;
+	}
+	default void addFrame(BufferedImage input, List<BufferedImage> lookahead) {
+		addFrame(input);
+	}
+	default int getFrameBudget() {
+		return 0;
+	}
+	default void setFrameBudget(int budget) {
+	}
+	/**
+	 * Overrides the average budget for the next frame only; see {@link BudgetPlanner}.
+	 */
+	default void setNextFrameBudget(int budget) {
+	}
+	default double[] estimateComplexity(IVideoReader reader) {
+		double[] complexity = new double[reader.getFrameCount()];
+		Arrays.fill(complexity, 1);
+		return complexity;
+	}
 	default BufferedImage getPreprocessedFrame(IVideoReader reader, int image) {
 		return reader.getFrame(image);
 	}
+	/**
+	 * Like {@link #getPreprocessedFrame(IVideoReader, int)}, but may draw into reuse instead of a new image.
+	 */
+	default BufferedImage getPreprocessedFrame(IVideoReader reader, int image, BufferedImage reuse) {
+		return getPreprocessedFrame(reader, image);
+	}
+	/**
+	 * Like {@link #getFrame(int)}, but may draw into reuse instead of a new image.
+	 */
+	default BufferedImage getFrame(int frame, BufferedImage reuse) {
+		return getFrame(frame);
+	}
+	default Optional<FrameStatistics> getFrameStatistics(int frame) {
+		return Optional.empty();
+	}
+	default Optional<FrameIndex> getFrameIndex() {
+		return Optional.empty();
+	}
 	void write(OutputStream stream) throws IOException;
 }
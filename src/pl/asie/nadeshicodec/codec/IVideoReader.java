@@ -20,8 +20,18 @@
 package pl.asie.nadeshicodec.codec;
 
 import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
 
-public interface IVideoReader {
+public interface IVideoReader extends Closeable {
 	int getFrameCount();
 	BufferedImage getFrame(int frame);
+
+	/**
+	 * Releases decoded frames kept off the heap, such as a scratch file.
+	 * Frames must not be requested afterwards.
+	 */
+	@Override
+	default void close() throws IOException {
+	}
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.asie.nadeshicodec.codec;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+/**
+ * Decoded frames kept in fixed-size RGB slots of a memory-mapped scratch file,
+ * off the Java heap. Frames are served as images backed by the mapping itself,
+ * so reading one again costs no decoding and no copy.
+ */
+public class MappedFrameStore implements Closeable {
+	// mapped in regions, as one mapping cannot exceed 2 GB
+	private static final long REGION_SIZE = 256L << 20;
+
+	private final int width, height, slotSize, slotsPerRegion;
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel channel;
+	private final List<MappedByteBuffer> regions = new ArrayList<>();
+	private final ColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+			false, false, ColorModel.OPAQUE, DataBuffer.TYPE_BYTE);
+	private int count;
+
+	private static class MappedDataBuffer extends DataBuffer {
+		private final ByteBuffer buffer;
+
+		MappedDataBuffer(ByteBuffer buffer) {
+			super(DataBuffer.TYPE_BYTE, buffer.capacity());
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int getElem(int bank, int i) {
+			return buffer.get(i) & 0xFF;
+		}
+
+		@Override
+		public void setElem(int bank, int i, int val) {
+			buffer.put(i, (byte) val);
+		}
+	}
+
+	public MappedFrameStore(int width, int height) throws IOException {
+		this(width, height, File.createTempFile("nadeshicodec", ".frames"));
+	}
+
+	public MappedFrameStore(int width, int height, File file) throws IOException {
+		this.width = width;
+		this.height = height;
+		this.slotSize = width * height * 3;
+		this.slotsPerRegion = (int) Math.max(1, REGION_SIZE / slotSize);
+		this.file = file;
+		file.deleteOnExit();
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		this.channel = randomAccessFile.getChannel();
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	private synchronized ByteBuffer getSlot(int slot) {
+		int region = slot / slotsPerRegion;
+		try {
+			while (regions.size() <= region) {
+				long offset = (long) regions.size() * slotsPerRegion * slotSize;
+				regions.add(channel.map(FileChannel.MapMode.READ_WRITE, offset, (long) slotsPerRegion * slotSize));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		ByteBuffer buffer = regions.get(region).duplicate();
+		int start = (slot % slotsPerRegion) * slotSize;
+		buffer.position(start);
+		buffer.limit(start + slotSize);
+		return buffer.slice();
+	}
+
+	/**
+	 * Adds a slot for a new frame, to be filled with width * height * 3 bytes of RGB, row by row.
+	 *
+	 * @return The slot's buffer, at position 0.
+	 */
+	public synchronized ByteBuffer allocate() {
+		return getSlot(count++);
+	}
+
+	public int add(BufferedImage image) {
+		ByteBuffer buffer = allocate();
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			image.getRGB(0, y, width, 1, row, 0, width);
+			for (int x = 0; x < width; x++) {
+				buffer.put((byte) (row[x] >> 16));
+				buffer.put((byte) (row[x] >> 8));
+				buffer.put((byte) row[x]);
+			}
+		}
+		return size() - 1;
+	}
+
+	/**
+	 * @return An image backed by the slot; writing to it changes the stored frame.
+	 */
+	public BufferedImage get(int frame) {
+		if (frame < 0 || frame >= size()) {
+			throw new IndexOutOfBoundsException("Frame " + frame + " not stored!");
+		}
+
+		SampleModel sampleModel = new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE,
+				width, height, 3, width * 3, new int[] { 0, 1, 2 });
+		WritableRaster raster = Raster.createWritableRaster(sampleModel, new MappedDataBuffer(getSlot(frame)), null);
+		return new BufferedImage(colorModel, raster, false, new Hashtable<>());
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		regions.clear();
+		channel.close();
+		randomAccessFile.close();
+		file.delete();
+	}
+}
@@ -19,15 +19,14 @@
 
 package pl.asie.nadeshicodec.codec;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
 import org.bytedeco.javacpp.*;
 
-import java.awt.color.ColorSpace;
 import java.awt.image.*;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Hashtable;
-import java.util.List;
+import java.nio.ByteBuffer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -39,7 +38,10 @@ import static org.bytedeco.javacpp.swscale.*;
 
 @SuppressWarnings("deprecation")
 public class VideoReaderFFMPEG implements IVideoReader {
-	private final List<BufferedImage> frames;
+	// decoded frames live in the store; frameSlots maps each output frame to its slot
+	private final MappedFrameStore store;
+	private final IntList frameSlots = new IntArrayList();
+	private final byte[] rowBuffer;
 
 	private final AVFormatContext formatContext;
 	private final AVCodecContext videoContext;
@@ -53,6 +55,7 @@ public class VideoReaderFFMPEG implements IVideoReader {
 	private double framepos;
 	private int framecount;
 	private double frametime;
+	private boolean closed;
 
 	public VideoReaderFFMPEG(File file, double framerate, Consumer<String> statusConsumer, Function<int[], int[]> sizeCalculator) throws IOException {
 		formatContext = new AVFormatContext(null);
@@ -115,7 +118,8 @@ public class VideoReaderFFMPEG implements IVideoReader {
 		avpicture_fill(new AVPicture(frameRGB), frameBuffer, AV_PIX_FMT_RGB24,
 				videoContext.width(), videoContext.height());
 
-		frames = new ArrayList<>();
+		store = new MappedFrameStore(width, height);
+		rowBuffer = new byte[width * 3];
 
 		framepos = 0;
 		frametime = 1 / framerate;
@@ -146,24 +150,34 @@ public class VideoReaderFFMPEG implements IVideoReader {
 	}
 
 	@Override
-	public BufferedImage getFrame(int frameId) {
+	public synchronized BufferedImage getFrame(int frameId) {
+		if (closed) {
+			throw new IllegalStateException("Reader is closed!");
+		}
 		int[] frameFinished = new int[1];
-		while (frames.size() <= frameId) {
+		while (frameSlots.size() <= frameId) {
 			if (av_read_frame(formatContext, packet) < 0) break;
 
 			if (packet.stream_index() == videoId) {
-				double pts = packet.pts() * av_q2d(formatContext.streams(videoId).time_base());
 				avcodec_decode_video2(videoContext, frame, frameFinished, packet);
 
 				if (frameFinished[0] != 0) {
+					// the decoder may hold frames back, so the packet's own time is not the
+					// picture's; Long.MIN_VALUE is AV_NOPTS_VALUE
+					long timestamp = frame.best_effort_timestamp();
+					double pts = (timestamp != Long.MIN_VALUE ? timestamp : packet.pts()) * av_q2d(formatContext.streams(videoId).time_base());
+
+					// only frames an output frame maps to get a slot; with a source faster
+					// than the output frame rate, the rest are dropped before conversion
 					if (pts >= framepos) {
 						sws_scale(scaleContext, frame.data(), frame.linesize(), 0,
 								videoContext.height(), frameRGB.data(), frameRGB.linesize());
 
-						BufferedImage image = getBufferedImage(frameRGB, width, height);
+						int slot = store.size();
+						storeFrame(frameRGB);
 
 						while (pts >= framepos) {
-							frames.add(image);
+							frameSlots.add(slot);
 							framepos += frametime;
 						}
 					}
@@ -173,38 +187,67 @@ public class VideoReaderFFMPEG implements IVideoReader {
 			av_free_packet(packet);
 		}
 
-		return frames.get(Math.min(frames.size() - 1, frameId));
+		return store.get(frameSlots.getInt(Math.min(frameSlots.size() - 1, frameId)));
 	}
 
-	private BufferedImage getBufferedImage(AVFrame f, int width, int height) {
+	private void storeFrame(AVFrame f) {
 		BytePointer data = f.data(0);
 		int linesize = f.linesize(0);
-		byte[] buf = new byte[width * height * 3];
+		ByteBuffer slot = store.allocate();
 
 		for (int y = 0; y < height; y++) {
 			data = data.position(y * linesize);
-			data.get(buf, y * width * 3, width * 3);
+			data.get(rowBuffer, 0, rowBuffer.length);
+			slot.put(rowBuffer);
 		}
-
-		DataBuffer buffer = new DataBufferByte(buf, buf.length);
-		WritableRaster raster = Raster.createInterleavedRaster(buffer,
-				width, height, width * 3, 3, new int[] { 0, 1, 2 }, null);
-		ColorSpace colorSpace = ColorSpace.getInstance(ColorSpace.CS_sRGB);
-		ColorModel colorModel = new ComponentColorModel(colorSpace, false, true,
-				ColorModel.OPAQUE, DataBuffer.TYPE_BYTE);
-		return new BufferedImage(colorModel, raster, false, new Hashtable<>());
 	}
 
 	@Override
-	public void finalize() {
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
 		av_free(frameBuffer);
 		av_free(frameRGB);
 		av_free(frame);
 		avcodec_close(videoContext);
 		avformat_close_input(formatContext);
+		if (store != null) {
+			store.close();
+		}
+	}
+
+	@Override
+	public void finalize() {
+		try {
+			close();
+		} catch (IOException e) {
+			// the scratch file is deleted on exit regardless
+		}
+	}
+
+	/**
+	 * Reads only the container headers, without scanning or decoding the file.
+	 *
+	 * @return The duration in seconds, or -1 if the container does not give one.
+	 */
+	public static double probeDuration(File file) throws IOException {
+		AVFormatContext context = new AVFormatContext(null);
+		av_register_all();
+		ioError(avformat_open_input(context, file.getAbsolutePath(), null, null), "avformat_open_input");
+		try {
+			ioError(avformat_find_stream_info(context, (PointerPointer) null), "avformat_find_stream_info");
+			// in AV_TIME_BASE units; unknown is AV_NOPTS_VALUE, which is negative
+			long duration = context.duration();
+			return duration > 0 ? duration / 1000000.0 : -1;
+		} finally {
+			avformat_close_input(context);
+		}
 	}
 
-	private void ioError(int v, String s) throws IOException {
+	private static void ioError(int v, String s) throws IOException {
 		if (v != 0) {
 			throw new IOException(s + ": error code " + v);
 		}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.nadeshicodec.codec;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Wraps a reader, passing every frame through a chain of filters in order.
+ * Filtered frames are kept in a {@link MappedFrameStore}, off the heap, like
+ * the decoded frames of the parent reader.
+ */
+public class VideoReaderFiltered implements IVideoReader {
+	private final IVideoReader parent;
+	private final List<IFrameFilter> filters;
+	private MappedFrameStore store;
+
+	public VideoReaderFiltered(IVideoReader parent, List<IFrameFilter> filters) {
+		this.parent = parent;
+		this.filters = filters;
+	}
+
+	@Override
+	public int getFrameCount() {
+		return parent.getFrameCount();
+	}
+
+	@Override
+	public synchronized BufferedImage getFrame(int frame) {
+		// filters may depend on previous frames, so always go in order
+		while (getFilteredCount() <= frame) {
+			BufferedImage image = parent.getFrame(getFilteredCount());
+			for (IFrameFilter filter : filters) {
+				image = filter.filter(image);
+			}
+
+			if (store == null) {
+				try {
+					store = new MappedFrameStore(image.getWidth(), image.getHeight());
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			store.add(image);
+		}
+
+		return store.get(frame);
+	}
+
+	private int getFilteredCount() {
+		return store != null ? store.size() : 0;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			if (store != null) {
+				store.close();
+			}
+		} finally {
+			parent.close();
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.nadeshicodec.codec.container;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Seek table for an encoded stream, stored as a sidecar (.idx) next to it.
+ *
+ * Format (big endian): int magic "NCIX", byte version, byte layout flags (since version 2),
+ * short width, short height, int frame count, then per frame: long offset, int length,
+ * int cost, byte flags. Offsets and lengths are those of the data as stored in the
+ * stream file; every frame, once decompressed, ends with its end-frame command. In a
+ * sector-aligned stream, a frame's data skips the sector headers it runs into.
+ */
+public final class FrameIndex {
+	public static final int MAGIC = 0x4E434958;
+	public static final int VERSION = 2;
+	public static final int FLAG_KEYFRAME = 0x01;
+	public static final int LAYOUT_ALIGNED = 0x01;
+	public static final int LAYOUT_COMPRESSED = 0x02;
+
+	private final int width, height;
+	private final int layout;
+	private final long[] offsets;
+	private final int[] lengths;
+	private final int[] costs;
+	private final byte[] flags;
+
+	public FrameIndex(int width, int height, long[] offsets, int[] lengths, int[] costs, byte[] flags) {
+		this(width, height, 0, offsets, lengths, costs, flags);
+	}
+
+	public FrameIndex(int width, int height, int layout, long[] offsets, int[] lengths, int[] costs, byte[] flags) {
+		if (offsets.length != lengths.length || offsets.length != costs.length || offsets.length != flags.length) {
+			throw new IllegalArgumentException("Index arrays differ in length!");
+		}
+		this.width = width;
+		this.height = height;
+		this.layout = layout;
+		this.offsets = offsets;
+		this.lengths = lengths;
+		this.costs = costs;
+		this.flags = flags;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public boolean isSectorAligned() {
+		return (layout & LAYOUT_ALIGNED) != 0;
+	}
+
+	/**
+	 * @return Whether frames are LZ compressed; see {@link LZEncoder}. Decoding must then start at a keyframe.
+	 */
+	public boolean isCompressed() {
+		return (layout & LAYOUT_COMPRESSED) != 0;
+	}
+
+	public int getFrameCount() {
+		return offsets.length;
+	}
+
+	public long getOffset(int frame) {
+		return offsets[frame];
+	}
+
+	public int getLength(int frame) {
+		return lengths[frame];
+	}
+
+	public int getCost(int frame) {
+		return costs[frame];
+	}
+
+	public boolean isKeyframe(int frame) {
+		return (flags[frame] & FLAG_KEYFRAME) != 0;
+	}
+
+	/**
+	 * @return The last keyframe at or before frame, where decoding can start to show it; -1 if none.
+	 */
+	public int getKeyframeBefore(int frame) {
+		for (int i = Math.min(frame, offsets.length - 1); i >= 0; i--) {
+			if (isKeyframe(i)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public byte[] readFrame(RandomAccessFile file, int frame) throws IOException {
+		if (isSectorAligned()) {
+			return SectorLayout.readFrame(file, offsets[frame], lengths[frame]);
+		}
+
+		byte[] data = new byte[lengths[frame]];
+		file.seek(offsets[frame]);
+		file.readFully(data);
+		return data;
+	}
+
+	/**
+	 * @return An index of this stream followed by other, whose frames were moved to start at offset.
+	 */
+	public FrameIndex append(FrameIndex other, long offset) {
+		if (other.width != width || other.height != height) {
+			throw new IllegalArgumentException("Cannot join " + other.width + "x" + other.height + " frames to " + width + "x" + height + "!");
+		}
+		if (other.layout != layout) {
+			throw new IllegalArgumentException("Cannot join streams with different layouts!");
+		}
+
+		int count = offsets.length;
+		long[] newOffsets = Arrays.copyOf(offsets, count + other.offsets.length);
+		long base = other.offsets.length > 0 ? other.offsets[0] : 0;
+		for (int i = 0; i < other.offsets.length; i++) {
+			newOffsets[count + i] = other.offsets[i] - base + offset;
+		}
+
+		int[] newLengths = Arrays.copyOf(lengths, newOffsets.length);
+		System.arraycopy(other.lengths, 0, newLengths, count, other.lengths.length);
+		int[] newCosts = Arrays.copyOf(costs, newOffsets.length);
+		System.arraycopy(other.costs, 0, newCosts, count, other.costs.length);
+		byte[] newFlags = Arrays.copyOf(flags, newOffsets.length);
+		System.arraycopy(other.flags, 0, newFlags, count, other.flags.length);
+		return new FrameIndex(width, height, layout, newOffsets, newLengths, newCosts, newFlags);
+	}
+
+	public void write(OutputStream stream) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeByte(layout);
+		out.writeShort(width);
+		out.writeShort(height);
+		out.writeInt(offsets.length);
+		for (int i = 0; i < offsets.length; i++) {
+			out.writeLong(offsets[i]);
+			out.writeInt(lengths[i]);
+			out.writeInt(costs[i]);
+			out.writeByte(flags[i]);
+		}
+		out.flush();
+	}
+
+	public static FrameIndex read(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a frame index!");
+		}
+		int version = in.readUnsignedByte();
+		if (version < 1 || version > VERSION) {
+			throw new IOException("Unsupported frame index version " + version + "!");
+		}
+
+		int layout = version >= 2 ? in.readUnsignedByte() : 0;
+
+		int width = in.readUnsignedShort();
+		int height = in.readUnsignedShort();
+		int count = in.readInt();
+		long[] offsets = new long[count];
+		int[] lengths = new int[count];
+		int[] costs = new int[count];
+		byte[] flags = new byte[count];
+		for (int i = 0; i < count; i++) {
+			offsets[i] = in.readLong();
+			lengths[i] = in.readInt();
+			costs[i] = in.readInt();
+			flags[i] = in.readByte();
+		}
+		return new FrameIndex(width, height, layout, offsets, lengths, costs, flags);
+	}
+
+	public static File getIndexFile(File streamFile) {
+		return new File(streamFile.getPath() + ".idx");
+	}
+
+	public static FrameIndex read(File file) throws IOException {
+		try (FileInputStream stream = new FileInputStream(file)) {
+			return read(stream);
+		}
+	}
+}
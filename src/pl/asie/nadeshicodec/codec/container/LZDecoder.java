@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.asie.nadeshicodec.codec.container;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Reference decoder for {@link LZEncoder}'s output; rin.lua implements the same.
+ */
+public class LZDecoder {
+	private final byte[] window = new byte[LZEncoder.WINDOW_SIZE];
+	private int windowPos;
+
+	public void reset() {
+		windowPos = 0;
+	}
+
+	public byte[] decompress(byte[] data) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+		int pos = 0;
+
+		while (pos < data.length) {
+			int control = data[pos++] & 0xFF;
+			if (control < 0x80) {
+				for (int i = 0; i <= control; i++) {
+					put(out, data[pos++]);
+				}
+			} else {
+				int length = (control & 0x7F) + LZEncoder.MIN_MATCH;
+				int distance = (data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8;
+				pos += 2;
+				for (int i = 0; i < length; i++) {
+					put(out, window[(windowPos - distance) & (LZEncoder.WINDOW_SIZE - 1)]);
+				}
+			}
+		}
+
+		return out.toByteArray();
+	}
+
+	private void put(ByteArrayOutputStream out, byte b) {
+		out.write(b);
+		window[windowPos] = b;
+		windowPos = (windowPos + 1) & (LZEncoder.WINDOW_SIZE - 1);
+	}
+}
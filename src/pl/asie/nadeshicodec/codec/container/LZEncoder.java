@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.asie.nadeshicodec.codec.container;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * LZ77 compressor for frame data, sized for a decoder small enough for rin.lua.
+ *
+ * A frame is a sequence of tokens. A control byte c below 0x80 is followed by
+ * c + 1 literal bytes; otherwise it copies (c & 0x7F) + 4 bytes starting a
+ * distance back in the decoded output, given as a little endian short (1 to
+ * 4096) after it. Matches may reach into earlier frames, but never past the
+ * last reset, so decoding can start at any frame which was compressed with one.
+ */
+public class LZEncoder {
+	public static final int WINDOW_SIZE = 4096;
+	public static final int MIN_MATCH = 4;
+	public static final int MAX_MATCH = 0x7F + MIN_MATCH;
+	public static final int MAX_LITERALS = 0x80;
+
+	private static final int HASH_BITS = 12;
+	private static final int MAX_CHAIN = 64;
+
+	private byte[] history = new byte[0];
+
+	public void reset() {
+		history = new byte[0];
+	}
+
+	private static int hash(byte[] data, int pos) {
+		int v = (data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8 | (data[pos + 2] & 0xFF) << 16 | (data[pos + 3] & 0xFF) << 24;
+		return (v * 0x9E3779B1) >>> (32 - HASH_BITS);
+	}
+
+	/**
+	 * @param reset Whether to forget earlier frames first, so that decoding may start here.
+	 */
+	public byte[] compress(byte[] frame, boolean reset) {
+		if (reset) {
+			reset();
+		}
+
+		byte[] data = Arrays.copyOf(history, history.length + frame.length);
+		System.arraycopy(frame, 0, data, history.length, frame.length);
+		int start = history.length;
+
+		int[] head = new int[1 << HASH_BITS];
+		int[] prev = new int[data.length];
+		Arrays.fill(head, -1);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(frame.length);
+		int literalStart = start;
+		int pos = 0;
+
+		while (pos < data.length) {
+			int bestLength = 0;
+			int bestDistance = 0;
+
+			if (pos >= start && pos + MIN_MATCH <= data.length) {
+				int maxLength = Math.min(MAX_MATCH, data.length - pos);
+				int candidate = head[hash(data, pos)];
+				for (int chain = 0; candidate >= 0 && pos - candidate <= WINDOW_SIZE && chain < MAX_CHAIN; chain++) {
+					int length = 0;
+					while (length < maxLength && data[candidate + length] == data[pos + length]) {
+						length++;
+					}
+					if (length > bestLength) {
+						bestLength = length;
+						bestDistance = pos - candidate;
+						if (length == maxLength) {
+							break;
+						}
+					}
+					candidate = prev[candidate];
+				}
+			}
+
+			if (bestLength >= MIN_MATCH) {
+				writeLiterals(out, data, literalStart, pos);
+				out.write(0x80 | (bestLength - MIN_MATCH));
+				out.write(bestDistance);
+				out.write(bestDistance >> 8);
+				for (int i = 0; i < bestLength; i++) {
+					insert(data, pos++, head, prev);
+				}
+				literalStart = pos;
+			} else {
+				insert(data, pos++, head, prev);
+			}
+		}
+
+		writeLiterals(out, data, literalStart, data.length);
+
+		int keep = Math.min(WINDOW_SIZE, data.length);
+		history = Arrays.copyOfRange(data, data.length - keep, data.length);
+		return out.toByteArray();
+	}
+
+	private static void insert(byte[] data, int pos, int[] head, int[] prev) {
+		if (pos + MIN_MATCH <= data.length) {
+			int h = hash(data, pos);
+			prev[pos] = head[h];
+			head[h] = pos;
+		}
+	}
+
+	private static void writeLiterals(ByteArrayOutputStream out, byte[] data, int from, int to) {
+		while (from < to) {
+			int count = Math.min(MAX_LITERALS, to - from);
+			out.write(count - 1);
+			out.write(data, from, count);
+			from += count;
+		}
+	}
+}
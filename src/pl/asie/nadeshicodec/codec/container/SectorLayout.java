@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.asie.nadeshicodec.codec.container;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Packs a stream into 512-byte sectors, matching how cpdrive.lua lays a file
+ * out on an unmanaged drive.
+ *
+ * The first sector holds only the stream header. Every following sector starts
+ * with a little endian short counting the frames which start inside it and a
+ * little endian short counting the payload bytes used, followed by the payload.
+ * A frame which fits in one sector's payload never straddles two.
+ */
+public final class SectorLayout {
+	public static final int SECTOR_SIZE = 512;
+	public static final int HEADER_SIZE = 4;
+	public static final int PAYLOAD_SIZE = SECTOR_SIZE - HEADER_SIZE;
+
+	public static final int FORMAT_BASE = 0x01;
+	public static final int FORMAT_ALIGNED = 0x02;
+	public static final int FORMAT_COMPRESSED = 0x04;
+
+	private SectorLayout() {
+
+	}
+
+	/**
+	 * @return The absolute file offset at which each frame's data starts.
+	 */
+	public static long[] getOffsets(int[] lengths) {
+		long[] offsets = new long[lengths.length];
+		long sector = 1;
+		int used = 0;
+
+		for (int i = 0; i < lengths.length; i++) {
+			int length = lengths[i];
+			// a full sector leaves nothing to start in; nor does one too full for a short frame
+			if (used == PAYLOAD_SIZE || (used > 0 && length <= PAYLOAD_SIZE && used + length > PAYLOAD_SIZE)) {
+				sector++;
+				used = 0;
+			}
+			offsets[i] = sector * SECTOR_SIZE + HEADER_SIZE + used;
+
+			while (length > 0) {
+				if (used == PAYLOAD_SIZE) {
+					sector++;
+					used = 0;
+				}
+				int count = Math.min(PAYLOAD_SIZE - used, length);
+				used += count;
+				length -= count;
+			}
+		}
+
+		return offsets;
+	}
+
+	public static int getSectorCount(int[] lengths) {
+		if (lengths.length == 0) {
+			return 1;
+		}
+		long[] offsets = getOffsets(lengths);
+		int last = lengths.length - 1;
+		return (int) (getEnd(offsets[last], lengths[last]) / SECTOR_SIZE) + 1;
+	}
+
+	// position of the last byte of a frame
+	private static long getEnd(long offset, int length) {
+		long sector = offset / SECTOR_SIZE;
+		int used = (int) (offset % SECTOR_SIZE) - HEADER_SIZE + length;
+		return (sector + (used - 1) / PAYLOAD_SIZE) * SECTOR_SIZE + HEADER_SIZE + (used - 1) % PAYLOAD_SIZE;
+	}
+
+	public static void write(OutputStream stream, int format, int width, int height, List<byte[]> frames) throws IOException {
+		byte[] sector = new byte[SECTOR_SIZE];
+		sector[0] = (byte) (format | FORMAT_ALIGNED);
+		sector[1] = (byte) width;
+		sector[2] = (byte) height;
+		stream.write(sector);
+		Arrays.fill(sector, (byte) 0);
+
+		int[] lengths = new int[frames.size()];
+		for (int i = 0; i < lengths.length; i++) {
+			lengths[i] = frames.get(i).length;
+		}
+		long[] offsets = getOffsets(lengths);
+
+		long current = 1;
+		int used = 0;
+		int starts = 0;
+
+		for (int i = 0; i < lengths.length; i++) {
+			long target = offsets[i] / SECTOR_SIZE;
+			while (current < target) {
+				writeSector(stream, sector, starts, used);
+				current++;
+				used = 0;
+				starts = 0;
+			}
+			if (used == PAYLOAD_SIZE) {
+				writeSector(stream, sector, starts, used);
+				current++;
+				used = 0;
+				starts = 0;
+			}
+			if (current * SECTOR_SIZE + HEADER_SIZE + used != offsets[i]) {
+				// the index is built from getOffsets, so the two must agree
+				throw new IllegalStateException("Frame " + i + " written at " + (current * SECTOR_SIZE + HEADER_SIZE + used) + ", not " + offsets[i] + "!");
+			}
+			starts++;
+
+			byte[] data = frames.get(i);
+			int pos = 0;
+			while (pos < data.length) {
+				if (used == PAYLOAD_SIZE) {
+					writeSector(stream, sector, starts, used);
+					current++;
+					used = 0;
+					starts = 0;
+				}
+				int count = Math.min(PAYLOAD_SIZE - used, data.length - pos);
+				System.arraycopy(data, pos, sector, HEADER_SIZE + used, count);
+				used += count;
+				pos += count;
+			}
+		}
+
+		if (used > 0 || starts > 0) {
+			writeSector(stream, sector, starts, used);
+		}
+	}
+
+	private static void writeSector(OutputStream stream, byte[] sector, int starts, int used) throws IOException {
+		sector[0] = (byte) starts;
+		sector[1] = (byte) (starts >> 8);
+		sector[2] = (byte) used;
+		sector[3] = (byte) (used >> 8);
+		stream.write(sector);
+		Arrays.fill(sector, (byte) 0);
+	}
+
+	/**
+	 * Reads a frame's data, skipping the sector headers in between.
+	 */
+	public static byte[] readFrame(RandomAccessFile file, long offset, int length) throws IOException {
+		byte[] data = new byte[length];
+		int pos = 0;
+		while (pos < length) {
+			int count = (int) Math.min(length - pos, SECTOR_SIZE - (offset % SECTOR_SIZE));
+			file.seek(offset);
+			file.readFully(data, pos, count);
+			pos += count;
+			offset = (offset / SECTOR_SIZE + 1) * SECTOR_SIZE + HEADER_SIZE;
+		}
+		return data;
+	}
+}
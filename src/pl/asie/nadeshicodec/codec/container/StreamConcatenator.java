@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.nadeshicodec.codec.container;
+
+import java.io.*;
+import java.util.List;
+
+/**
+ * Joins separately encoded segments of one video into a single stream. Every
+ * segment starts with a frame drawn from scratch, so segments can be encoded
+ * in parallel and joined afterwards.
+ */
+public final class StreamConcatenator {
+	private StreamConcatenator() {
+
+	}
+
+	/**
+	 * @param segments Stream files, each with its .idx sidecar.
+	 * @return The index of the joined stream, which is also written next to it.
+	 */
+	public static FrameIndex concatenate(List<File> segments, File output) throws IOException {
+		if (segments.isEmpty()) {
+			throw new IllegalArgumentException("Nothing to join!");
+		}
+
+		FrameIndex index = null;
+		long position = 0;
+		byte[] buffer = new byte[65536];
+
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+			for (File segment : segments) {
+				FrameIndex segmentIndex = FrameIndex.read(FrameIndex.getIndexFile(segment));
+				long start;
+				if (segmentIndex.isSectorAligned()) {
+					// whole sectors are copied, so frames keep their place within them
+					start = SectorLayout.SECTOR_SIZE;
+				} else {
+					start = segmentIndex.getFrameCount() > 0 ? segmentIndex.getOffset(0) : segment.length();
+				}
+
+				try (InputStream in = new BufferedInputStream(new FileInputStream(segment))) {
+					// only the first segment keeps its stream header
+					if (index != null) {
+						long skipped = 0;
+						while (skipped < start) {
+							long n = in.skip(start - skipped);
+							if (n <= 0) throw new EOFException("Segment " + segment + " is truncated!");
+							skipped += n;
+						}
+					}
+
+					long segmentStart = position + (segmentIndex.getFrameCount() > 0 ? segmentIndex.getOffset(0) - start : 0);
+					int read;
+					while ((read = in.read(buffer)) > 0) {
+						out.write(buffer, 0, read);
+						position += read;
+					}
+
+					index = index == null ? segmentIndex : index.append(segmentIndex, segmentStart);
+				}
+			}
+		}
+
+		try (OutputStream out = new FileOutputStream(FrameIndex.getIndexFile(output))) {
+			index.write(out);
+		}
+		return index;
+	}
+}
@@ -22,24 +22,32 @@ package pl.asie.nadeshicodec.codec.nadeshiko;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import it.unimi.dsi.fastutil.ints.*;
+import pl.asie.nadeshicodec.codec.FrameStatistics;
+import pl.asie.nadeshicodec.codec.ICheckpointable;
 import pl.asie.nadeshicodec.codec.ICodec;
 import pl.asie.nadeshicodec.codec.IVideoReader;
+import pl.asie.nadeshicodec.codec.container.FrameIndex;
+import pl.asie.nadeshicodec.codec.container.LZEncoder;
+import pl.asie.nadeshicodec.codec.container.SectorLayout;
 import pl.asie.nadeshicodec.codec.nadeshiko.tools.ColorRectangleFinder;
-import pl.asie.nadeshicodec.codec.nadeshiko.tools.ColorRectangleFinderOld;
+import pl.asie.nadeshicodec.codec.nadeshiko.tools.QuadrantBlockFinder;
 import pl.asie.nadeshicodec.util.DitherMatrix;
 import pl.asie.nadeshicodec.util.ImageUtils;
 import pl.asie.nadeshicodec.util.MathUtils;
+import pl.asie.nadeshicodec.util.colorspace.DistanceMetric;
 import pl.asie.nadeshicodec.util.oc.*;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.util.*;
-import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
-public class CodecNadeshiko implements ICodec {
+public class CodecNadeshiko implements ICodec, ICheckpointable {
 	public static class OCCommandWeighted {
 		public final List<IOCCommand> commands;
 		private int weightCacheCid = -1;
@@ -47,6 +55,7 @@ public class CodecNadeshiko implements ICodec {
 		private int tccCacheCid = -1;
 		private int tccCache;
 		private boolean used;
+		private double priority = 1.0;
 //		private int lcCacheCid = -1;
 //		private int lcCache;
 
@@ -66,6 +75,14 @@ public class CodecNadeshiko implements ICodec {
 			return commands.get(commands.size() - 1);
 		}
 
+		public double getPriority() {
+			return priority;
+		}
+
+		public void setPriority(double priority) {
+			this.priority = priority;
+		}
+
 		public int getTotalCommandCost(OCCommandContext context) {
 			if (context.getContextId() != tccCacheCid) {
 				int s = 0;
@@ -121,9 +138,35 @@ public class CodecNadeshiko implements ICodec {
 	}
 
 	private final List<OCImage> imageList = new ArrayList<>();
-	private final List<IOCCommand> commands = new ArrayList<>();
+	private final List<byte[]> frameData = new ArrayList<>();
+	private final List<FrameStatistics> frameStatistics = new ArrayList<>();
 	private final DitherMatrix ditherMatrix;
+	private PaletteMetrics metrics = PaletteMetrics.of(OCUtils.getPaletteTier3());
 	private OCCommandContext lastContext = new OCCommandContext();
+	private int frameBudget = 254;
+	// planned budget of the frame being encoded, or -1 for frameBudget
+	private int nextFrameBudget = -1;
+	private int currentBudget;
+
+	// a frame is a scene cut if at least this fraction of cells changed...
+	private double sceneCutChangedRatio = 0.6;
+	// ...and the average distance per cell is at least this high
+	private long sceneCutDistance = 8 * ImageUtils.cheapColorDistance(0x000000, 0x404040);
+	// after a cut, spread the refresh over this many frames, top to bottom
+	private int refreshFrames = 4;
+	private double refreshBandPriority = 4.0;
+	private int refreshFrame = -1;
+
+	// quantized future frames used to prefer updates which persist
+	private final Int2ObjectMap<OCImage> quantizedFrames = new Int2ObjectOpenHashMap<>();
+	private QuantizedFrameCache sharedFrames;
+	private int lookahead = 0;
+	private double lookaheadMinWeight = 0.5;
+	// keep displayed cells if they are at most this much worse per pixel
+	private int hysteresis = 0;
+	private boolean sectorAligned;
+	private boolean compressed;
+	private boolean blocks;
 
 	public CodecNadeshiko() {
 		this(new DitherMatrix());
@@ -138,6 +181,249 @@ public class CodecNadeshiko implements ICodec {
 		return imageList.size();
 	}
 
+	public void setDistanceMetric(DistanceMetric metric) {
+		this.metrics = PaletteMetrics.of(OCUtils.getPaletteTier3(), metric);
+		quantizedFrames.clear();
+		if (sharedFrames != null) {
+			sharedFrames.register(this, metrics, ditherMatrix);
+		}
+	}
+
+	public void setSceneCutThreshold(double changedRatio, long distance) {
+		this.sceneCutChangedRatio = changedRatio;
+		this.sceneCutDistance = distance;
+	}
+
+	public void setRefreshFrames(int refreshFrames) {
+		this.refreshFrames = Math.max(1, refreshFrames);
+	}
+
+	@Override
+	public int getFrameBudget() {
+		return frameBudget;
+	}
+
+	@Override
+	public void setFrameBudget(int budget) {
+		this.frameBudget = budget;
+	}
+
+	@Override
+	public void setNextFrameBudget(int budget) {
+		this.nextFrameBudget = budget;
+	}
+
+	@Override
+	public double[] estimateComplexity(IVideoReader reader) {
+		int count = reader.getFrameCount();
+		double[] complexity = new double[count];
+		if (count <= 0) {
+			return complexity;
+		}
+
+		// decode everything up front - the reader is not thread-safe while decoding
+		reader.getFrame(count - 1);
+
+		// chunks run in parallel, each quantizing its frames in order once
+		int chunkSize = Math.max(4, Math.min(64, count / (Runtime.getRuntime().availableProcessors() * 2)));
+		IntStream.range(0, (count + chunkSize - 1) / chunkSize).parallel().forEach((chunk) -> {
+			int start = chunk * chunkSize;
+			int end = Math.min(count, start + chunkSize);
+			OCImage prev = start > 0 ? OCUtils.from(reader.getFrame(start - 1), metrics, ditherMatrix) : null;
+
+			for (int i = start; i < end; i++) {
+				OCImage curr = OCUtils.from(reader.getFrame(i), metrics, ditherMatrix, hysteresis > 0 ? prev : null, hysteresis);
+				if (prev != null) {
+					OCImageDelta delta = new OCImageDelta(curr.getWidthChars(), curr.getHeightChars());
+					delta.recalc(prev, curr);
+					complexity[i] = delta.getTotalDistance();
+				}
+				prev = curr;
+			}
+		});
+
+		// the first frame is drawn from scratch, whatever its budget; complexity[0] stays 0
+		return complexity;
+	}
+
+	@Override
+	public int getLookahead() {
+		return lookahead;
+	}
+
+	public void setLookahead(int lookahead) {
+		this.lookahead = Math.max(0, lookahead);
+	}
+
+	/**
+	 * @param tolerance The average extra distance per pixel accepted to keep a cell
+	 *                  as already displayed, rather than switch to a new best choice; 0 disables.
+	 */
+	public void setHysteresis(int tolerance) {
+		this.hysteresis = Math.max(0, tolerance);
+	}
+
+	/**
+	 * @param sectorAligned Whether to write the stream packed into 512-byte drive sectors.
+	 */
+	public void setSectorAligned(boolean sectorAligned) {
+		this.sectorAligned = sectorAligned;
+	}
+
+	/**
+	 * @param compressed Whether to write frames LZ compressed; see {@link LZEncoder}.
+	 */
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+
+	/**
+	 * @param blocks Whether to also propose two-colour block commands (0x30), which need the matching rin.lua.
+	 */
+	public void setBlocks(boolean blocks) {
+		this.blocks = blocks;
+	}
+
+	/**
+	 * @param cache Quantized frames shared with other codecs encoding the same input, or null
+	 *              to leave the current one, which then stops keeping frames for this codec.
+	 */
+	public void setQuantizedFrameCache(QuantizedFrameCache cache) {
+		if (sharedFrames != null) {
+			sharedFrames.unregister(this);
+		}
+		this.sharedFrames = cache;
+		if (cache != null) {
+			cache.register(this, metrics, ditherMatrix);
+			cache.advance(this, imageList.size());
+		}
+	}
+
+	private OCImage quantizeUncached(int frame, BufferedImage input) {
+		return sharedFrames != null ? sharedFrames.get(frame, input, metrics, ditherMatrix) : OCUtils.from(input, metrics, ditherMatrix);
+	}
+
+	private OCImage quantize(int frame, BufferedImage input) {
+		if (hysteresis > 0 && lastImage != null) {
+			// depends on what is on screen, so nothing cached can be used
+			return OCUtils.from(input, metrics, ditherMatrix, lastImage, hysteresis);
+		}
+		OCImage image = quantizedFrames.remove(frame);
+		return image != null ? image : quantizeUncached(frame, input);
+	}
+
+	private List<OCImage> quantizeLookahead(int frameNumber, OCImage image, List<BufferedImage> inputs) {
+		if (hysteresis > 0) {
+			// chained from this frame's target, the way the frames themselves will be
+			List<OCImage> images = new ArrayList<>(inputs.size());
+			OCImage prev = image;
+			for (BufferedImage input : inputs) {
+				prev = OCUtils.from(input, metrics, ditherMatrix, prev, hysteresis);
+				images.add(prev);
+			}
+			return images;
+		}
+
+		quantizedFrames.keySet().removeIf((i) -> i <= frameNumber || i > frameNumber + inputs.size());
+
+		OCImage[] images = new OCImage[inputs.size()];
+		for (int i = 0; i < images.length; i++) {
+			images[i] = quantizedFrames.get(frameNumber + 1 + i);
+		}
+
+		IntStream.range(0, images.length).parallel().filter((i) -> images[i] == null).forEach((i) ->
+				images[i] = quantizeUncached(frameNumber + 1 + i, inputs.get(i))
+		);
+
+		for (int i = 0; i < images.length; i++) {
+			quantizedFrames.put(frameNumber + 1 + i, images[i]);
+		}
+
+		return Arrays.asList(images);
+	}
+
+	/**
+	 * Weight each cell by how many of the following frames keep its target
+	 * unchanged - drawing a cell which changes again next frame is wasted budget.
+	 */
+	private float[] getTemporalWeights(OCImage image, List<OCImage> future) {
+		float[] weights = new float[image.getWidthChars() * image.getHeightChars()];
+
+		IntStream.range(0, image.getHeightChars()).parallel().forEach((y) -> {
+			for (int x = 0; x < image.getWidthChars(); x++) {
+				int bg = image.getBG(x, y);
+				int fg = image.getFG(x, y);
+				int q = image.getQuadrant(x, y);
+				int stable = 0;
+
+				for (OCImage f : future) {
+					if (ImageUtils.hasDistance(bg, fg, q, f.getBG(x, y), f.getFG(x, y), f.getQuadrant(x, y))) {
+						break;
+					}
+					stable++;
+				}
+
+				weights[y * image.getWidthChars() + x] = (float) (lookaheadMinWeight + (1 - lookaheadMinWeight) * stable / future.size());
+			}
+		});
+
+		return weights;
+	}
+
+	private double getTemporalPriority(OCCommandWeighted w, OCImage image, float[] weights) {
+		double sum = 0;
+		int total = 0;
+
+		for (IOCCommand c : w.commands) {
+			Optional<IntIterator> it = c.getChangedPositions(image.getWidthChars(), image.getHeightChars());
+			if (it.isPresent()) {
+				IntIterator i = it.get();
+				while (i.hasNext()) {
+					int p = i.nextInt();
+					if (p >= 0 && p < weights.length) {
+						sum += weights[p];
+						total++;
+					}
+				}
+			}
+		}
+
+		return total > 0 ? sum / total : 1.0;
+	}
+
+	private boolean isSceneCut(OCImageDelta delta) {
+		int size = delta.getSize();
+		if (size <= 0) {
+			return false;
+		}
+
+		return delta.getChangedCount() >= size * sceneCutChangedRatio
+				&& delta.getTotalDistance() / size >= sceneCutDistance;
+	}
+
+	private double getRefreshPriority(OCCommandWeighted w, OCImage image, int band) {
+		int width = image.getWidthChars();
+		int height = image.getHeightChars();
+		int bandStart = band * height / refreshFrames;
+		int bandEnd = (band + 1) * height / refreshFrames;
+		int inBand = 0;
+		int total = 0;
+
+		for (IOCCommand c : w.commands) {
+			Optional<IntIterator> it = c.getChangedPositions(width, height);
+			if (it.isPresent()) {
+				IntIterator i = it.get();
+				while (i.hasNext()) {
+					int y = i.nextInt() / width;
+					if (y >= bandStart && y < bandEnd) inBand++;
+					total++;
+				}
+			}
+		}
+
+		return total > 0 ? 1.0 + (refreshBandPriority - 1.0) * inBand / total : 1.0;
+	}
+
 	private void iterate(OCImage lastImage, OCImage image, OCImageDelta delta, List<OCCommandWeighted> weighteds, boolean vertical, boolean calcSublines) {
 		IntList qs = new IntArrayList();
 
@@ -275,21 +561,12 @@ public class CodecNadeshiko implements ICodec {
 
 			// combine
 			if (calcSublines) {
-				//for (List<OCCommandWeighted> ocwist : IntStream.rangeClosed(3, Math.min(11, lineCmds.size())).parallel().mapToObj((iSize) -> {
-				for (List<OCCommandWeighted> ocwist : IntStream.of(3, lineCmds.size()).parallel().mapToObj((iSize) -> {
-					List<OCCommandWeighted> cmds = new ArrayList<>();
-					if (iSize > lineCmds.size()) return cmds;
-
-					for (int iStart = 0; iStart < lineCmds.size() + 1 - iSize; iStart++) {
-						//if (ocw.getLastCommand().applyDistance(new OCCommandContext(), lastImage, image) >= -1E-10) {
-						//}
-						cmds.addAll(CommandCombiner.combine(image, lineCmds, iStart, iStart + iSize - 1, vertical, image.getPalette()));
-					}
-
-					return cmds;
-				}).collect(Collectors.toList())) {
-					weighteds.addAll(ocwist);
+				// lossless overlays of three neighbouring runs
+				for (int iStart = 0; iStart < lineCmds.size() - 2; iStart++) {
+					weighteds.addAll(CommandCombiner.combine(image, lineCmds, iStart, iStart + 2, vertical, image.getMetrics()));
 				}
+
+				weighteds.addAll(LinePartitioner.partition(image, delta, new OCCommandContext(), lineCmds, vertical));
 			}
 		}
 	}
@@ -300,8 +577,17 @@ public class CodecNadeshiko implements ICodec {
 
 	@Override
 	public void addFrame(BufferedImage input) {
+		addFrame(input, Collections.emptyList());
+	}
+
+	@Override
+	public void addFrame(BufferedImage input, List<BufferedImage> lookaheadInputs) {
 		final int frameNumber = imageList.size();
-		OCImage image = OCUtils.from(input, OCUtils.getPaletteTier3(), ditherMatrix);
+		long startTime = System.currentTimeMillis();
+		currentBudget = nextFrameBudget > 0 ? nextFrameBudget : frameBudget;
+		nextFrameBudget = -1;
+		OCImage image = quantize(frameNumber, input);
+		List<OCImage> future = lookaheadInputs.isEmpty() ? Collections.emptyList() : quantizeLookahead(frameNumber, image, lookaheadInputs);
 
 		if (imageList.isEmpty()) {
 			imageList.add(image);
@@ -321,15 +607,19 @@ public class CodecNadeshiko implements ICodec {
 			OCCommandContext context = new OCCommandContext();
 
 			weighteds.sort((a, b) -> Double.compare(b.getWeightedValue(context, image1, image, delta, frameNumber), a.getWeightedValue(context, image1, image, delta, frameNumber)));
+			List<IOCCommand> frameCommands = new ArrayList<>();
+			int cost = 0;
 			for (OCCommandWeighted w : weighteds) {
 				for (IOCCommand cmd : w.commands) {
+					cost += cmd.getCost(context);
 					cmd.applyDistance(context, image1, image1, new OCImageDelta(image.getWidthChars(), image.getHeightChars()));
 				}
 
-				commands.addAll(w.commands);
+				frameCommands.addAll(w.commands);
 			}
 
-			commands.add(new OCCommandEndFrame());
+			frameCommands.add(new OCCommandEndFrame());
+			finishFrame(frameNumber, frameCommands, cost, image, image, true, startTime);
 			lastContext = context;
 			lastUneditedImage = image;
 			return;
@@ -342,19 +632,53 @@ public class CodecNadeshiko implements ICodec {
 		final OCImageDelta delta = new OCImageDelta(image.getWidthChars(), image.getHeightChars());
 		delta.recalc(lastImage, image);
 
+		// against the previous target rather than the screen, which keeps showing
+		// the old scene until the refresh is done and would look like a cut every frame
+		final OCImageDelta targetDelta = new OCImageDelta(image.getWidthChars(), image.getHeightChars());
+		targetDelta.recalc(lastUneditedImage, image);
+
+		if (isSceneCut(targetDelta)) {
+			System.out.println("Frame " + frameNumber + ": scene cut, refreshing over " + refreshFrames + " frames");
+			refreshFrame = 0;
+		} else if (refreshFrame >= 0 && (++refreshFrame >= refreshFrames
+				|| delta.getChangedCount() < delta.getSize() * sceneCutChangedRatio / 4)) {
+			// plan finished, or the picture has already caught up
+			refreshFrame = -1;
+		}
+
+		// during a refresh, the previous picture is no reference - skip the
+		// vertical delta candidates and draw the new picture band by band
+		boolean intra = refreshFrame >= 0;
+
 		iterate(lastImage, image, delta, weightedSets, false, true);
-		iterate(lastImage, image, delta, weightedSets, true, true);
+		if (!intra) {
+			iterate(lastImage, image, delta, weightedSets, true, true);
+		}
 		int rectsCount = weightedSets.size();
 
-		ColorRectangleFinderOld.getRectangles(image, lastImage).forEach((a) -> weightedSets.add(a.toWCommand()));
 		ColorRectangleFinder.getRectangles(image, lastImage).forEach((a) -> weightedSets.add(a.toWCommand()));
 		int fillsCount = weightedSets.size() - rectsCount;
 
-		System.out.println("Have " + fillsCount + " fills, " + rectsCount + " sets.");
+		if (blocks) {
+			weightedSets.addAll(QuadrantBlockFinder.getBlocks(image, lastImage));
+		}
+		int blocksCount = weightedSets.size() - rectsCount - fillsCount;
+
+		if (intra) {
+			final int band = refreshFrame;
+			weightedSets.parallelStream().forEach((w) -> w.setPriority(getRefreshPriority(w, image, band)));
+		}
+
+		if (!future.isEmpty()) {
+			final float[] weights = getTemporalWeights(image, future);
+			weightedSets.parallelStream().forEach((w) -> w.setPriority(w.getPriority() * getTemporalPriority(w, image, weights)));
+		}
+
+		System.out.println("Have " + fillsCount + " fills, " + rectsCount + " sets, " + blocksCount + " blocks.");
 
 		OCCommandContext context = lastContext.copy(false);
 		int cost = 0;
-		int maxCost = 254;
+		int maxCost = currentBudget;
 		int cmds = 0;
 
 		/* for (int iy = 0; iy < image.getHeightChars(); iy++) {
@@ -392,8 +716,8 @@ public class CodecNadeshiko implements ICodec {
 				divA *= divA;
 				divB *= divB;
 
-				double vA = a.getWeightedValue(currContext, currImage, image, delta, frameNumber) / (divA);
-				double vB = b.getWeightedValue(currContext, currImage, image, delta, frameNumber) / (divB);
+				double vA = a.getWeightedValue(currContext, currImage, image, delta, frameNumber) * a.priority / (divA);
+				double vB = b.getWeightedValue(currContext, currImage, image, delta, frameNumber) * b.priority / (divB);
 
 				return Double.compare(vB, vA);
 			}).orElse(null);
@@ -474,18 +798,28 @@ public class CodecNadeshiko implements ICodec {
 					}
 				}
 
+				List<IOCCommand> newFrameCommands = new ArrayList<>();
+				for (IOCCommand c : frameCommands) {
+					if (c != null) {
+						newFrameCommands.add(c);
+					}
+				}
+
+				// reordering to save on color switches may free some budget
+				List<IOCCommand> scheduled = CommandScheduler.schedule(newFrameCommands, lastContext, lastImage.copy());
+				if (CommandScheduler.getCost(scheduled, lastContext, lastImage.copy()) < CommandScheduler.getCost(newFrameCommands, lastContext, lastImage.copy())) {
+					newFrameCommands = scheduled;
+					squeezed = true;
+				}
+
 				if (squeezed) {
 					OCImage testImage = lastImage.copy();
 					OCCommandContext testContext = lastContext.copy(false);
 
 					int newCost = 0;
-					List<IOCCommand> newFrameCommands = new ArrayList<>();
-					for (IOCCommand c : frameCommands) {
-						if (c != null) {
-							newFrameCommands.add(c);
-							newCost += c.getCost(testContext);
-							c.apply(testContext, testImage);
-						}
+					for (IOCCommand c : newFrameCommands) {
+						newCost += c.getCost(testContext);
+						c.apply(testContext, testImage);
 					}
 
 					// System.out.println("Squeezed " + frameCommands.size() + " (" + cost + ") -> " + newFrameCommands.size() + " (" + newCost + ")");
@@ -536,8 +870,25 @@ public class CodecNadeshiko implements ICodec {
 			} */
 		}
 
+		List<IOCCommand> scheduled = CommandScheduler.schedule(frameCommands, lastContext, lastImage.copy());
+		OCImage scheduledImage = lastImage.copy();
+		OCCommandContext scheduledContext = lastContext.copy(false);
+		int scheduledCost = 0;
+		for (IOCCommand c : scheduled) {
+			scheduledCost += c.getCost(scheduledContext);
+			c.apply(scheduledContext, scheduledImage);
+		}
+
+		if (scheduledCost < cost) {
+			frameCommands = scheduled;
+			cost = scheduledCost;
+			context = scheduledContext;
+			nextImage = scheduledImage;
+		}
+
 		frameCommands.add(new OCCommandEndFrame());
-		commands.addAll(frameCommands);
+		// even a scene cut is a budgeted delta, with its refresh spread over the following frames
+		finishFrame(frameNumber, frameCommands, cost, nextImage, image, false, startTime);
 
 		// recalc nextImage
 		/* nextImage = lastImage.copy();
@@ -570,15 +921,168 @@ public class CodecNadeshiko implements ICodec {
 		lastImage = nextImage;
 	}
 
+	private void finishFrame(int frameNumber, List<IOCCommand> frameCommands, int cost, OCImage result, OCImage target, boolean keyframe, long startTime) {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		try {
+			for (IOCCommand c : frameCommands) {
+				c.write(stream);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		frameData.add(stream.toByteArray());
+
+		OCImageDelta delta = new OCImageDelta(target.getWidthChars(), target.getHeightChars());
+		delta.recalc(result, target);
+		frameStatistics.add(new FrameStatistics(
+				frameNumber, frameCommands.size() - 1, cost, currentBudget, stream.size(),
+				delta.getChangedCount(), delta.getTotalDistance() / 1000000.0,
+				keyframe, System.currentTimeMillis() - startTime
+		));
+
+		if (sharedFrames != null) {
+			sharedFrames.advance(this, frameNumber + 1);
+		}
+	}
+
+	@Override
+	public Optional<FrameStatistics> getFrameStatistics(int frame) {
+		return frame >= 0 && frame < frameStatistics.size() ? Optional.of(frameStatistics.get(frame)) : Optional.empty();
+	}
+
+	@Override
+	public Optional<FrameIndex> getFrameIndex() {
+		List<byte[]> data = getStreamData();
+		int count = data.size();
+		long[] offsets = new long[count];
+		int[] lengths = new int[count];
+		int[] costs = new int[count];
+		byte[] flags = new byte[count];
+
+		// past the 1, w, h header
+		long offset = 3;
+		for (int i = 0; i < count; i++) {
+			FrameStatistics stats = frameStatistics.get(i);
+			offsets[i] = offset;
+			lengths[i] = data.get(i).length;
+			costs[i] = stats.getCost();
+			flags[i] = (byte) (stats.isKeyframe() ? FrameIndex.FLAG_KEYFRAME : 0);
+			offset += lengths[i];
+		}
+
+		if (sectorAligned) {
+			offsets = SectorLayout.getOffsets(lengths);
+		}
+
+		int width = imageList.isEmpty() ? 0 : imageList.get(0).getWidthChars();
+		int height = imageList.isEmpty() ? 0 : imageList.get(0).getHeightChars();
+		int layout = (sectorAligned ? FrameIndex.LAYOUT_ALIGNED : 0) | (compressed ? FrameIndex.LAYOUT_COMPRESSED : 0);
+		return Optional.of(new FrameIndex(width, height, layout, offsets, lengths, costs, flags));
+	}
+
+	@Override
+	public byte[] getFrameData(int frame) {
+		return frameData.get(frame);
+	}
+
+	private static void writeImage(DataOutputStream stream, OCImage image) throws IOException {
+		stream.writeShort(image.getWidthChars());
+		stream.writeShort(image.getHeightChars());
+		for (int y = 0; y < image.getHeightChars(); y++) {
+			for (int x = 0; x < image.getWidthChars(); x++) {
+				stream.writeByte(image.getBG(x, y));
+				stream.writeByte(image.getFG(x, y));
+				stream.writeByte(image.getQuadrant(x, y));
+			}
+		}
+	}
+
+	private OCImage readImage(DataInputStream stream) throws IOException {
+		OCImage image = new OCImage(stream.readUnsignedShort(), stream.readUnsignedShort(), metrics);
+		for (int y = 0; y < image.getHeightChars(); y++) {
+			for (int x = 0; x < image.getWidthChars(); x++) {
+				image.set(x, y, stream.readUnsignedByte(), stream.readUnsignedByte(), stream.readUnsignedByte());
+			}
+		}
+		return image;
+	}
+
+	@Override
+	public void writeState(DataOutputStream stream) throws IOException {
+		stream.writeInt(imageList.size());
+		if (!imageList.isEmpty()) {
+			writeImage(stream, lastImage);
+			writeImage(stream, lastUneditedImage);
+		}
+		stream.writeInt(lastContext.getCurrBg());
+		stream.writeInt(lastContext.getCurrFg());
+		stream.writeInt(refreshFrame);
+		stream.writeDouble(totalDiff);
+	}
+
+	/**
+	 * Restores a saved encoder state. Previews of frames before the checkpoint
+	 * are not kept; they all show the last checkpointed frame.
+	 */
+	@Override
+	public void readState(DataInputStream stream, List<byte[]> frameData, List<FrameStatistics> frameStatistics) throws IOException {
+		int count = stream.readInt();
+		if (frameData.size() != count || frameStatistics.size() != count) {
+			throw new IOException("Checkpoint has " + count + " frames, but " + frameData.size() + " frames of data!");
+		}
+
+		imageList.clear();
+		quantizedFrames.clear();
+		if (count > 0) {
+			lastImage = readImage(stream);
+			lastUneditedImage = readImage(stream);
+			for (int i = 0; i < count; i++) {
+				imageList.add(lastImage);
+			}
+		}
+
+		lastContext = new OCCommandContext();
+		lastContext.setCurrBg(stream.readInt());
+		lastContext.setCurrFg(stream.readInt());
+		refreshFrame = stream.readInt();
+		totalDiff = stream.readDouble();
+
+		this.frameData.clear();
+		this.frameData.addAll(frameData);
+		this.frameStatistics.clear();
+		this.frameStatistics.addAll(frameStatistics);
+	}
+
 	@Override
 	public BufferedImage getPreprocessedFrame(IVideoReader reader, int image) {
+		return getPreprocessedFrame(reader, image, null);
+	}
+
+	@Override
+	public BufferedImage getPreprocessedFrame(IVideoReader reader, int image, BufferedImage reuse) {
 		if (image == imageList.size() - 1 && image >= 0) {
-			return lastUneditedImage.getPreview();
+			return lastUneditedImage.getPreview(reuse);
 		} else {
-			return OCUtils.from(reader.getFrame(image), OCUtils.getPaletteTier3(), ditherMatrix).getPreview();
+			return quantizeUncached(image, reader.getFrame(image)).getPreview(reuse);
 		}
 	}
 
+	/**
+	 * @return The frames as they are stored in the stream.
+	 */
+	private List<byte[]> getStreamData() {
+		if (!compressed) {
+			return frameData;
+		}
+
+		LZEncoder encoder = new LZEncoder();
+		List<byte[]> data = new ArrayList<>(frameData.size());
+		for (int i = 0; i < frameData.size(); i++) {
+			data.add(encoder.compress(frameData.get(i), frameStatistics.get(i).isKeyframe()));
+		}
+		return data;
+	}
+
 	@Override
 	public void write(OutputStream stream) throws IOException {
 		int width = 0;
@@ -589,17 +1093,29 @@ public class CodecNadeshiko implements ICodec {
 			height = imageList.get(0).getHeightChars();
 		}
 
-		stream.write(1);
+		List<byte[]> data = getStreamData();
+		int format = SectorLayout.FORMAT_BASE | (compressed ? SectorLayout.FORMAT_COMPRESSED : 0);
+		if (sectorAligned) {
+			SectorLayout.write(stream, format, width, height, data);
+			return;
+		}
+
+		stream.write(format);
 		stream.write(width);
 		stream.write(height);
 
-		for (IOCCommand c : commands) {
-			c.write(stream);
+		for (byte[] frame : data) {
+			stream.write(frame);
 		}
 	}
 
 	@Override
 	public BufferedImage getFrame(int frame) {
-		return imageList.get(frame).getPreview();
+		return getFrame(frame, null);
+	}
+
+	@Override
+	public BufferedImage getFrame(int frame, BufferedImage reuse) {
+		return imageList.get(frame).getPreview(reuse);
 	}
 }
@@ -71,7 +71,7 @@ public class CommandCombiner {
 		}
 	}
 
-	public static Collection<CodecNadeshiko.OCCommandWeighted> combine(OCImage image, List<CodecNadeshiko.OCCommandWeighted> lineCmds, int start, int end, boolean vertical, int[] palette) {
+	public static Collection<CodecNadeshiko.OCCommandWeighted> combine(OCImage image, List<CodecNadeshiko.OCCommandWeighted> lineCmds, int start, int end, boolean vertical, PaletteMetrics palette) {
 		int size = end - start + 1;
 		int[][] quadArrays = new int[size][];
 		int[] bgColors = new int[size];
@@ -260,8 +260,10 @@ public class CommandCombiner {
 			int[] colorsA = colors.toIntArray();
 
 			// j - bit set
-			for (int i = 0; i < colorsA.length - 1; i++) {
-				for (int j = i + 1; j < colorsA.length; j++) {
+			for (int ii = 0; ii < colorsA.length - 1; ii++) {
+				for (int jj = ii + 1; jj < colorsA.length; jj++) {
+					int i = colorsA[ii];
+					int j = colorsA[jj];
 					long distance = 0;
 					for (int p = 0; p < size; p++) {
 						// should we use bg/bg, bg/fg, fg/bg or fg/fg?
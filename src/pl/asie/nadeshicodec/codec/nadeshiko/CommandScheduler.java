@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.asie.nadeshicodec.codec.nadeshiko;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntList;
+import pl.asie.nadeshicodec.util.oc.IOCCommand;
+import pl.asie.nadeshicodec.util.oc.OCCommandContext;
+import pl.asie.nadeshicodec.util.oc.OCImage;
+
+import java.util.*;
+
+/**
+ * Reorders a frame's commands to minimize colour switches. Commands touching
+ * the same cell keep their relative order; commands which do not report their
+ * changed positions act as barriers.
+ */
+public final class CommandScheduler {
+	private CommandScheduler() {
+
+	}
+
+	public static int getCost(List<IOCCommand> commands, OCCommandContext context, OCImage scratch) {
+		OCCommandContext ctx = context.copy(true);
+		int cost = 0;
+		for (IOCCommand c : commands) {
+			cost += c.getCost(ctx);
+			c.apply(ctx, scratch);
+		}
+		return cost;
+	}
+
+	public static List<IOCCommand> schedule(List<IOCCommand> commands, OCCommandContext context, OCImage scratch) {
+		int n = commands.size();
+		int width = scratch.getWidthChars();
+		int[] lastWriter = new int[width * scratch.getHeightChars()];
+		Arrays.fill(lastWriter, -1);
+
+		// dependency DAG: each command depends on the previous writer of every cell it touches
+		IntList[] dependents = new IntList[n];
+		int[] dependencies = new int[n];
+		int lastBarrier = -1;
+		IntList sinceBarrier = new IntArrayList();
+
+		for (int i = 0; i < n; i++) {
+			dependents[i] = new IntArrayList();
+			Optional<IntIterator> it = commands.get(i).getChangedPositions(width, scratch.getHeightChars());
+
+			if (!it.isPresent()) {
+				for (int j : sinceBarrier) {
+					dependents[j].add(i);
+					dependencies[i]++;
+				}
+				if (sinceBarrier.isEmpty() && lastBarrier >= 0) {
+					dependents[lastBarrier].add(i);
+					dependencies[i]++;
+				}
+				sinceBarrier.clear();
+				lastBarrier = i;
+				continue;
+			}
+
+			Set<Integer> deps = new HashSet<>();
+			if (lastBarrier >= 0) deps.add(lastBarrier);
+			IntIterator positions = it.get();
+			while (positions.hasNext()) {
+				int p = positions.nextInt();
+				if (p < 0 || p >= lastWriter.length) continue;
+				if (lastWriter[p] >= 0) deps.add(lastWriter[p]);
+				lastWriter[p] = i;
+			}
+
+			for (int j : deps) {
+				dependents[j].add(i);
+			}
+			dependencies[i] = deps.size();
+			sinceBarrier.add(i);
+		}
+
+		// greedy: always emit the ready command which is cheapest in the current context
+		List<IOCCommand> result = new ArrayList<>(n);
+		TreeSet<Integer> ready = new TreeSet<>();
+		for (int i = 0; i < n; i++) {
+			if (dependencies[i] == 0) ready.add(i);
+		}
+
+		OCCommandContext ctx = context.copy(true);
+		while (!ready.isEmpty()) {
+			int best = -1;
+			int bestCost = Integer.MAX_VALUE;
+			for (int i : ready) {
+				int c = commands.get(i).getCost(ctx);
+				if (c < bestCost) {
+					best = i;
+					bestCost = c;
+				}
+			}
+
+			ready.remove(best);
+			IOCCommand command = commands.get(best);
+			command.apply(ctx, scratch);
+			result.add(command);
+
+			for (int j : dependents[best]) {
+				if (--dependencies[j] == 0) ready.add(j);
+			}
+		}
+
+		return result;
+	}
+}
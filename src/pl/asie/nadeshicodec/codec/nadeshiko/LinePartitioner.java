@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.asie.nadeshicodec.codec.nadeshiko;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import pl.asie.nadeshicodec.util.ImageUtils;
+import pl.asie.nadeshicodec.util.oc.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds the cheapest way to draw a row (or column) of line commands by
+ * merging neighbouring runs into shared set/fill commands, trading
+ * distortion against command cost (including colour switches).
+ */
+public class LinePartitioner {
+	// longest run of line commands merged into one
+	private static final int MAX_SEGMENT = 12;
+	private static final int MAX_COLORS = 6;
+	// distortion we accept for every cost unit saved
+	private static final long LAMBDA = 8 * ImageUtils.cheapColorDistance(0x101010, 0x282828);
+
+	private static class Run {
+		private final int x, y, length;
+		private final int bg, fg;
+		private final int[] quadrants;
+		private final IOCCommand command;
+		private final boolean unchanged;
+
+		private Run(IOCCommand command, OCImage image, OCImageDelta delta, boolean vertical) {
+			this.command = command;
+			if (command instanceof OCCommandSetWithColor) {
+				OCCommandSetWithColor set = (OCCommandSetWithColor) command;
+				x = set.getX();
+				y = set.getY();
+				quadrants = set.getQuadrantArray();
+				bg = set.getBg();
+				fg = set.getFg();
+			} else {
+				OCCommandFillWithColor fill = (OCCommandFillWithColor) command;
+				x = fill.getX();
+				y = fill.getY();
+				quadrants = new int[vertical ? fill.getHeight() : fill.getWidth()];
+				bg = fill.getColor();
+				fg = fill.getColor();
+			}
+			length = quadrants.length;
+
+			boolean u = true;
+			for (int i = 0; i < length && u; i++) {
+				u = delta.getDistance(vertical ? x : x + i, vertical ? y + i : y, image) == 0;
+			}
+			unchanged = u;
+		}
+	}
+
+	private static class Segment {
+		private final IOCCommand command;
+		private final long distance;
+
+		private Segment(IOCCommand command, long distance) {
+			this.command = command;
+			this.distance = distance;
+		}
+	}
+
+	private static Segment approximate(OCImage image, Run[] runs, int start, int end, int[] colors, boolean vertical, long maxDistance) {
+		int len = 0;
+		for (int p = start; p <= end; p++) {
+			len += runs[p].length;
+		}
+
+		PaletteMetrics palette = image.getMetrics();
+		int[] tmpArray = new int[len];
+		int[] bestArray = null;
+		int bestI = -1, bestJ = -1;
+		long bestDistance = maxDistance;
+
+		// solid fills
+		for (int c : colors) {
+			long distance = 0;
+			for (int p = start; p <= end && distance < bestDistance; p++) {
+				Run r = runs[p];
+				for (int q : r.quadrants) {
+					distance += ImageUtils.getDistance(c, 0, 0, r.bg, r.fg, q, palette);
+				}
+			}
+
+			if (distance < bestDistance) {
+				bestDistance = distance;
+				bestI = c;
+				bestJ = c;
+			}
+		}
+
+		// two-color sets, picking bg/fg per run as CommandCombiner does
+		for (int i = 0; i < colors.length - 1; i++) {
+			for (int j = i + 1; j < colors.length; j++) {
+				int ci = colors[i];
+				int cj = colors[j];
+				long distance = 0;
+				int pp = 0;
+
+				for (int p = start; p <= end && distance < bestDistance; p++) {
+					Run r = runs[p];
+					boolean useJforBG = ImageUtils.cheapPaletteDistance(cj, r.bg, palette) < ImageUtils.cheapPaletteDistance(ci, r.bg, palette);
+					boolean useJforFG = ImageUtils.cheapPaletteDistance(cj, r.fg, palette) < ImageUtils.cheapPaletteDistance(ci, r.fg, palette);
+
+					for (int px = 0; px < r.length; px++, pp++) {
+						int q = r.quadrants[px];
+						if (useJforBG == useJforFG) {
+							tmpArray[pp] = useJforBG ? 0xFF : 0x00;
+						} else if (useJforBG) {
+							tmpArray[pp] = q ^ 0xFF;
+						} else {
+							tmpArray[pp] = q;
+						}
+
+						distance += ImageUtils.getDistance(ci, cj, tmpArray[pp], r.bg, r.fg, q, palette);
+					}
+				}
+
+				if (distance < bestDistance) {
+					bestDistance = distance;
+					bestI = ci;
+					bestJ = cj;
+					if (bestArray == null) bestArray = new int[len];
+					System.arraycopy(tmpArray, 0, bestArray, 0, len);
+				}
+			}
+		}
+
+		if (bestI < 0) {
+			return null;
+		}
+
+		Run first = runs[start];
+		if (bestI == bestJ) {
+			return new Segment(new OCCommandFillWithColor(
+					first.x, first.y, vertical ? 1 : len, vertical ? len : 1, bestI
+			), bestDistance);
+		} else {
+			return new Segment(new OCCommandSetWithColor(
+					first.x, first.y, bestArray, bestI, bestJ, vertical
+			), bestDistance);
+		}
+	}
+
+	public static List<CodecNadeshiko.OCCommandWeighted> partition(OCImage image, OCImageDelta delta, OCCommandContext context, List<CodecNadeshiko.OCCommandWeighted> lineCmds, boolean vertical) {
+		int n = lineCmds.size();
+		if (n < 2) {
+			return Collections.emptyList();
+		}
+
+		Run[] runs = new Run[n];
+		for (int i = 0; i < n; i++) {
+			IOCCommand c = lineCmds.get(i).getLastCommand();
+			if (!(c instanceof OCCommandSetWithColor) && !(c instanceof OCCommandFillWithColor)) {
+				return Collections.emptyList();
+			}
+			runs[i] = new Run(c, image, delta, vertical);
+		}
+
+		// best[i] - lowest (distortion + LAMBDA * cost) covering runs [0, i)
+		double[] best = new double[n + 1];
+		int[] from = new int[n + 1];
+		Segment[] choice = new Segment[n + 1];
+		OCCommandContext[] contexts = new OCCommandContext[n + 1];
+		OCImage scratch = new OCImage(image.getWidthChars(), image.getHeightChars(), image.getMetrics());
+
+		for (int i = 1; i <= n; i++) {
+			best[i] = Double.POSITIVE_INFINITY;
+		}
+		contexts[0] = context.copy(true);
+
+		for (int a = 0; a < n; a++) {
+			if (best[a] == Double.POSITIVE_INFINITY) continue;
+
+			// an unchanged run needs no command at all
+			if (runs[a].unchanged && best[a] < best[a + 1]) {
+				best[a + 1] = best[a];
+				from[a + 1] = a;
+				choice[a + 1] = null;
+				contexts[a + 1] = contexts[a];
+			}
+
+			IntSet colors = new IntOpenHashSet();
+			for (int b = a; b < n && b < a + MAX_SEGMENT; b++) {
+				colors.add(runs[b].bg);
+				colors.add(runs[b].fg);
+				if (colors.size() > MAX_COLORS) {
+					break;
+				}
+
+				Segment segment;
+				if (a == b) {
+					segment = new Segment(runs[a].command, 0);
+				} else {
+					// merging k runs can save at most (1 + 4) units per removed command
+					long maxDistance = LAMBDA * 5 * (b - a);
+					segment = approximate(image, runs, a, b, colors.toIntArray(), vertical, maxDistance);
+					if (segment == null) {
+						break;
+					}
+				}
+
+				double value = best[a] + segment.distance + (double) LAMBDA * segment.command.getCost(contexts[a]);
+				if (value < best[b + 1]) {
+					OCCommandContext ctx = contexts[a].copy(true);
+					segment.command.apply(ctx, scratch);
+
+					best[b + 1] = value;
+					from[b + 1] = a;
+					choice[b + 1] = segment;
+					contexts[b + 1] = ctx;
+				}
+			}
+		}
+
+		List<IOCCommand> commands = new ArrayList<>();
+		List<CodecNadeshiko.OCCommandWeighted> merged = new ArrayList<>();
+		for (int i = n; i > 0; i = from[i]) {
+			if (choice[i] != null) {
+				commands.add(choice[i].command);
+				if (i - from[i] > 1) {
+					merged.add(new CodecNadeshiko.OCCommandWeighted(choice[i].command));
+				}
+			}
+		}
+
+		if (merged.isEmpty()) {
+			// the runs as they are - already candidates
+			return Collections.emptyList();
+		}
+
+		Collections.reverse(commands);
+		if (commands.size() > 1) {
+			merged.add(new CodecNadeshiko.OCCommandWeighted(commands));
+		}
+		return merged;
+	}
+}
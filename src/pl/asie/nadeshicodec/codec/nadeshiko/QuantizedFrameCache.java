@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.nadeshicodec.codec.nadeshiko;
+
+import pl.asie.nadeshicodec.util.DitherMatrix;
+import pl.asie.nadeshicodec.util.oc.OCImage;
+import pl.asie.nadeshicodec.util.oc.OCUtils;
+import pl.asie.nadeshicodec.util.oc.PaletteMetrics;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Quantized frames shared between codecs encoding the same input, such as
+ * the configurations of a parameter sweep. Frames are kept per palette
+ * metrics and dither matrix instance, and only until every codec registered
+ * with that pair has encoded past them; a codec starting later quantizes
+ * the frames already dropped again. The images handed out must not be modified.
+ */
+public final class QuantizedFrameCache {
+	private static final class GroupKey {
+		private final PaletteMetrics metrics;
+		private final DitherMatrix dither;
+
+		private GroupKey(PaletteMetrics metrics, DitherMatrix dither) {
+			this.metrics = metrics;
+			this.dither = dither;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof GroupKey)) {
+				return false;
+			}
+			GroupKey other = (GroupKey) o;
+			return metrics == other.metrics && dither == other.dither;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(metrics) * 31 + System.identityHashCode(dither);
+		}
+	}
+
+	private static final class Group {
+		private final Map<Integer, OCImage> images = new ConcurrentHashMap<>();
+		// the first frame each registered codec may still ask for; guarded by the group
+		private final Map<Object, Integer> positions = new HashMap<>();
+		private volatile int start;
+
+		private synchronized void setPosition(Object owner, int position) {
+			positions.put(owner, position);
+			update();
+		}
+
+		private synchronized void remove(Object owner) {
+			positions.remove(owner);
+			update();
+		}
+
+		private void update() {
+			int min = positions.values().stream().mapToInt(Integer::intValue).min().orElse(Integer.MAX_VALUE);
+			if (min > start) {
+				images.keySet().removeIf((frame) -> frame < min);
+			}
+			start = min;
+		}
+	}
+
+	private final Map<GroupKey, Group> groups = new ConcurrentHashMap<>();
+	private final Map<Object, Group> owners = new ConcurrentHashMap<>();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong quantized = new AtomicLong();
+
+	private Group getGroup(PaletteMetrics metrics, DitherMatrix dither) {
+		return groups.computeIfAbsent(new GroupKey(metrics, dither), (k) -> new Group());
+	}
+
+	/**
+	 * Registers a codec, which will ask for frames from the first onwards; registering
+	 * again, say after a metric change, moves it.
+	 */
+	public void register(Object owner, PaletteMetrics metrics, DitherMatrix dither) {
+		unregister(owner);
+		Group group = getGroup(metrics, dither);
+		owners.put(owner, group);
+		group.setPosition(owner, 0);
+	}
+
+	/**
+	 * @param frame The first frame owner may still ask for; earlier ones may be dropped once no other codec needs them.
+	 */
+	public void advance(Object owner, int frame) {
+		Group group = owners.get(owner);
+		if (group != null) {
+			group.setPosition(owner, frame);
+		}
+	}
+
+	public void unregister(Object owner) {
+		Group group = owners.remove(owner);
+		if (group != null) {
+			group.remove(owner);
+		}
+	}
+
+	/**
+	 * @param input The input frame; must be the same for a given frame number every time.
+	 */
+	public OCImage get(int frame, BufferedImage input, PaletteMetrics metrics, DitherMatrix dither) {
+		Group group = getGroup(metrics, dither);
+		requests.incrementAndGet();
+		if (frame < group.start) {
+			// every codec is past it, so keeping it would only hold memory
+			quantized.incrementAndGet();
+			return OCUtils.from(input, metrics, dither);
+		}
+		// a codec asking for a frame another one is quantizing waits for it instead
+		return group.images.computeIfAbsent(frame, (k) -> {
+			quantized.incrementAndGet();
+			return OCUtils.from(input, metrics, dither);
+		});
+	}
+
+	/**
+	 * @return The number of frames currently kept.
+	 */
+	public int size() {
+		return groups.values().stream().mapToInt((g) -> g.images.size()).sum();
+	}
+
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return The number of requests which had to quantize the frame.
+	 */
+	public long getQuantizedCount() {
+		return quantized.get();
+	}
+}
@@ -19,28 +19,17 @@
 
 package pl.asie.nadeshicodec.codec.nadeshiko.tools;
 
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import org.apache.commons.pool2.BasePooledObjectFactory;
-import org.apache.commons.pool2.ObjectPool;
-import org.apache.commons.pool2.PooledObject;
-import org.apache.commons.pool2.PooledObjectFactory;
-import org.apache.commons.pool2.impl.DefaultPooledObject;
-import org.apache.commons.pool2.impl.GenericObjectPool;
-import org.w3c.dom.css.Rect;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
 import pl.asie.nadeshicodec.codec.nadeshiko.CodecNadeshiko;
 import pl.asie.nadeshicodec.util.ImageUtils;
 import pl.asie.nadeshicodec.util.MathUtils;
 import pl.asie.nadeshicodec.util.oc.OCCommandFillWithColor;
 import pl.asie.nadeshicodec.util.oc.OCImage;
-import pl.asie.nadeshicodec.util.oc.OCUtils;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
-import java.util.stream.DoubleStream;
 import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 public class ColorRectangleFinder {
 	public static class Rectangle {
@@ -98,151 +87,150 @@ public class ColorRectangleFinder {
 		}
 	}
 
-	private static void setColor(Int2ObjectMap<int[]> rectArrays, int ix, int iy, int width, int height, int color, int v) {
-		if (v <= 0) return;
+	private static final double[] RATIOS = new double[] { 0.1, 0.3 };
+	private static final int MIN_SIZE = 3;
+
+	/**
+	 * Summed-area table: sat[(y * (width + 1)) + x] holds the sum of all values
+	 * above and to the left of (x, y), so any box sum is four lookups.
+	 */
+	static int[] getSummedAreaTable(int[] values, int width, int height) {
+		int[] sat = new int[(width + 1) * (height + 1)];
+		for (int iy = 0; iy < height; iy++) {
+			int rowSum = 0;
+			for (int ix = 0; ix < width; ix++) {
+				rowSum += values[iy * width + ix];
+				sat[(iy + 1) * (width + 1) + ix + 1] = sat[iy * (width + 1) + ix + 1] + rowSum;
+			}
+		}
+		return sat;
+	}
 
-		int ip = iy * width + ix;
-		int[] arr = rectArrays.computeIfAbsent(color, (x) -> new int[width * height]);
-		if (arr[ip] < v) arr[ip] = v;
+	static int getBoxSum(int[] sat, int width, int x1, int y1, int x2, int y2) {
+		// [x1, x2) x [y1, y2)
+		int w = width + 1;
+		return sat[y2 * w + x2] - sat[y1 * w + x2] - sat[y2 * w + x1] + sat[y1 * w + x1];
 	}
 
-	private static final ObjectPool<int[]> HISTOGRAM_INT_ARRAYS = new GenericObjectPool<int[]>(new BasePooledObjectFactory<int[]>() {
-		@Override
-		public int[] create() throws Exception {
-			return new int[160*50];
+	private static int getCoverage(OCImage image, OCImage lastImage, int ix, int iy, int color) {
+		int bg = image.getBG(ix, iy);
+		int fg = image.getFG(ix, iy);
+		int q = image.getQuadrant(ix, iy);
+		int fgVal = MathUtils.setBits8(q);
+		int bgVal = 8 - fgVal;
+		if (q != 0 && q != 255 && !ImageUtils.hasDistance(
+				bg, fg, q,
+				lastImage.getBG(ix, iy), lastImage.getFG(ix, iy), lastImage.getQuadrant(ix, iy)
+		)) {
+			fgVal -= 2;
+			bgVal -= 2;
 		}
 
-		@Override
-		public PooledObject<int[]> wrap(int[] ints) {
-			return new DefaultPooledObject<>(ints);
-		}
-	});
+		int v = 0;
+		if (bg == color && bgVal > v) v = bgVal;
+		if (fg == color && fgVal > v) v = fgVal;
+		return v;
+	}
 
-	public static Collection<Rectangle> getRectangles(OCImage image, OCImage lastImage) {
-		final Int2ObjectMap<int[]> rectArrays = new Int2ObjectOpenHashMap<>();
+	private static void findRectangles(OCImage image, OCImage lastImage, int[] changedSat, int color, Set<Rectangle> rects) {
 		final int width = image.getWidthChars();
+		final int height = image.getHeightChars();
 
-		for (int iy = 0; iy < image.getHeightChars(); iy++) {
+		int[] coverage = new int[width * height];
+		for (int iy = 0; iy < height; iy++) {
 			for (int ix = 0; ix < width; ix++) {
-				int bg = image.getBG(ix, iy);
-				int fg = image.getFG(ix, iy);
-				int q = image.getQuadrant(ix, iy);
-				int fgVal = MathUtils.setBits8(q);
-				int bgVal = 8 - fgVal;
-				if (q != 0 && q != 255 && !ImageUtils.hasDistance(
-						bg, fg, q,
-						lastImage.getBG(ix, iy), lastImage.getFG(ix, iy), lastImage.getQuadrant(ix, iy)
-				)) {
-					fgVal -= 2;
-					bgVal -= 2;
-				}
-
-				setColor(rectArrays, ix, iy, width, image.getHeightChars(), bg, bgVal);
-				setColor(rectArrays, ix, iy, width, image.getHeightChars(), fg, fgVal);
-/*
-				int[] bgCl = OCUtils.getClosest(bg, image.getPalette());
-				int[] fgCl = OCUtils.getClosest(fg, image.getPalette());
+				coverage[iy * width + ix] = getCoverage(image, lastImage, ix, iy, color);
+			}
+		}
 
-				setColor(rectArrays, ix, iy, width, image.getHeightChars(), bgCl[1], bgVal/2);
-				setColor(rectArrays, ix, iy, width, image.getHeightChars(), fgCl[1], fgVal/2);
-				setColor(rectArrays, ix, iy, width, image.getHeightChars(), bgCl[2], (bgVal+2)/4);
-				setColor(rectArrays, ix, iy, width, image.getHeightChars(), fgCl[2], (fgVal+2)/4); */
+		// smoothen out over a 5x3 window
+		int[] sat = getSummedAreaTable(coverage, width, height);
+		float[] smoothed = new float[width * height];
+		for (int iy = 0; iy < height; iy++) {
+			int y1 = Math.max(0, iy - 1);
+			int y2 = Math.min(height, iy + 2);
+			for (int ix = 0; ix < width; ix++) {
+				int x1 = Math.max(0, ix - 2);
+				int x2 = Math.min(width, ix + 3);
+				smoothed[iy * width + ix] = (float) getBoxSum(sat, width, x1, y1, x2, y2) / ((x2 - x1) * (y2 - y1) * 8);
 			}
 		}
 
-		double[] ratios = new double[]{ 0.1f, 0.3f };
-		Set<Rectangle> rects = ConcurrentHashMap.newKeySet(ratios.length);
-
-		DoubleStream.of(ratios).parallel().forEach((rv) -> {
-			// histograms
-			//int[] arr = new int[image.getWidthChars()*image.getHeightChars()];
-			try {
-				int[] arr = HISTOGRAM_INT_ARRAYS.borrowObject();
-
-				for (int col : rectArrays.keySet()) {
-					int[] arr0 = rectArrays.get(col);
-
-					// smoothen out
-					int ip = 0;
-					for (int iy = 0; iy < image.getHeightChars(); iy++) {
-						for (int ix = 0; ix < width; ix++, ip++) {
-							float ratio = 0;
-							int ratioDiv = 0;
-
-							for (int isy = -1; isy <= 1; isy++) {
-								int asy = iy + isy;
-								if (asy >= image.getHeightChars()) {
-									break;
-								} else if (asy >= 0) {
-									for (int isx = -2; isx <= 2; isx++) {
-										int asx = ix + isx;
-										if (asx >= image.getWidthChars()) {
-											break;
-										} else if (asx >= 0) {
-											ratio += arr0[asy * width + asx];
-											ratioDiv++;
-										}
-									}
-								}
-							}
+		int[] heights = new int[width + 1];
+		int[] nextHeights = new int[width];
+		int[] stack = new int[width + 1];
+
+		for (double ratio : RATIOS) {
+			Arrays.fill(heights, 0);
 
-							ratio = ratio / ratioDiv / 8;
-							if (ratio >= rv) {
-								if (iy == 0) {
-									arr[ip] = 1;
-								} else {
-									arr[ip] = 1 + arr[ip - width];
-								}
-							} else {
-								arr[ip] = 0;
+			for (int iy = 0; iy < height; iy++) {
+				for (int ix = 0; ix < width; ix++) {
+					heights[ix] = smoothed[iy * width + ix] >= ratio ? heights[ix] + 1 : 0;
+					nextHeights[ix] = (iy + 1 < height && smoothed[(iy + 1) * width + ix] >= ratio) ? 1 : 0;
+				}
+
+				// maximal rectangles ending on this row, via the histogram stack
+				int sp = 0;
+				for (int ix = 0; ix <= width; ix++) {
+					while (sp > 0 && heights[stack[sp - 1]] >= heights[ix]) {
+						int h = heights[stack[--sp]];
+						if (h <= heights[ix]) continue;
+
+						int left = sp > 0 ? stack[sp - 1] + 1 : 0;
+						int w = ix - left;
+						if (w < MIN_SIZE || h < MIN_SIZE) continue;
+
+						// can it grow downwards? then a taller rectangle will cover it
+						boolean grows = true;
+						for (int jx = left; jx < ix; jx++) {
+							if (nextHeights[jx] == 0) {
+								grows = false;
+								break;
 							}
 						}
-					}
+						if (grows) continue;
 
-					ip = 0;
-					// we can skip rows 0 and 1 as we're looking for fh >= 3
-					for (int iy = 2; iy < image.getHeightChars(); iy++) {
-						for (int ix = 0; ix < width; ix++, ip++) {
-							if (arr[ip] != 0 && ((iy == image.getHeightChars() - 1) || arr[ip + width] == 0)) {
-								int height = arr[ip];
-								int x = ix;
-								while (x < width && arr[ip - ix + x] >= height) {
-									x++;
-								}
-
-								int fx = ix;
-								int fy = (iy - height + 1);
-								int fw = (x - ix);
-								int fh = ((iy + 1)) - fy;
-
-								if (fw >= 3 && fh >= 3) {
-									rects.add(new Rectangle(
-											fx, fy, fw, fh, col
-									));
-									//System.out.println("found rectangle " + fx + " " + fy + " " + fw + " " + fh);
-
-									int ip2 = fy * width + fx;
-									for (int i = 1; i < fw; i++, ip2++) {
-										if (arr[ip2] == height) {
-											arr[ip2] = 0;
-										}
-									}
-
-							/* while (ix < width && arr[iy * width + ix] == height) {
-								ix++;
-								ip++;
-							} */
-								}
-							}
+						int fy = iy - h + 1;
+						if (getBoxSum(changedSat, width, left, fy, ix, iy + 1) > 0) {
+							rects.add(new Rectangle(left, fy, w, h, color));
 						}
 					}
+					stack[sp++] = ix;
 				}
+			}
+		}
+	}
+
+	public static Collection<Rectangle> getRectangles(OCImage image, OCImage lastImage) {
+		final int width = image.getWidthChars();
+		final int height = image.getHeightChars();
+
+		// only colors present in changed cells can form useful fills
+		int[] changed = new int[width * height];
+		IntSet colors = new IntOpenHashSet();
 
-				HISTOGRAM_INT_ARRAYS.returnObject(arr);
-			} catch (Exception e) {
-				e.printStackTrace();
+		for (int iy = 0; iy < height; iy++) {
+			for (int ix = 0; ix < width; ix++) {
+				int bg = image.getBG(ix, iy);
+				int fg = image.getFG(ix, iy);
+				int q = image.getQuadrant(ix, iy);
+				if (ImageUtils.hasDistance(
+						bg, fg, q,
+						lastImage.getBG(ix, iy), lastImage.getFG(ix, iy), lastImage.getQuadrant(ix, iy)
+				)) {
+					changed[iy * width + ix] = 1;
+					if (q != 255) colors.add(bg);
+					if (q != 0) colors.add(fg);
+				}
 			}
-		});
+		}
+
+		int[] changedSat = getSummedAreaTable(changed, width, height);
+		Set<Rectangle> rects = ConcurrentHashMap.newKeySet();
+
+		IntStream.of(colors.toIntArray()).parallel().forEach((color) ->
+				findRectangles(image, lastImage, changedSat, color, rects)
+		);
 
 		return rects;
 	}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.asie.nadeshicodec.codec.nadeshiko.tools;
+
+import pl.asie.nadeshicodec.codec.nadeshiko.CodecNadeshiko;
+import pl.asie.nadeshicodec.util.ImageUtils;
+import pl.asie.nadeshicodec.util.oc.OCCommandSetBlock;
+import pl.asie.nadeshicodec.util.oc.OCImage;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Proposes two-colour blocks over the changed region: for the colour pairs
+ * most common among changed cells, the maximal rectangles whose cells can all
+ * be drawn exactly with that pair.
+ */
+public class QuadrantBlockFinder {
+	private static final int MIN_SIZE = 2;
+	private static final int MAX_PAIRS = 16;
+	// share of a block's cells which must be changed
+	private static final double MIN_CHANGED_RATIO = 0.75;
+
+	private static boolean fits(OCImage image, int ix, int iy, int a, int b) {
+		int bg = image.getBG(ix, iy);
+		int fg = image.getFG(ix, iy);
+		int q = image.getQuadrant(ix, iy);
+		if (q != 255 && bg != a && bg != b) return false;
+		if (q != 0 && fg != a && fg != b) return false;
+		return true;
+	}
+
+	private static OCCommandSetBlock createBlock(OCImage image, int x, int y, int width, int height, int a, int b) {
+		int[] quadrants = new int[width * height];
+		int i = 0;
+		for (int iy = y; iy < y + height; iy++) {
+			for (int ix = x; ix < x + width; ix++, i++) {
+				int bg = image.getBG(ix, iy);
+				int fg = image.getFG(ix, iy);
+				int q = image.getQuadrant(ix, iy);
+				if (q == 0) {
+					quadrants[i] = bg == a ? 0 : 255;
+				} else if (q == 255) {
+					quadrants[i] = fg == a ? 0 : 255;
+				} else {
+					quadrants[i] = bg == a ? q : (q ^ 0xFF);
+				}
+			}
+		}
+		return new OCCommandSetBlock(x, y, width, height, quadrants, a, b);
+	}
+
+	private static void findBlocks(OCImage image, int[] changedSat, int pair, Set<Long> found) {
+		final int width = image.getWidthChars();
+		final int height = image.getHeightChars();
+		final int a = pair >> 8;
+		final int b = pair & 0xFF;
+
+		boolean[] mask = new boolean[width * height];
+		for (int iy = 0; iy < height; iy++) {
+			for (int ix = 0; ix < width; ix++) {
+				mask[iy * width + ix] = fits(image, ix, iy, a, b);
+			}
+		}
+
+		int[] heights = new int[width + 1];
+		int[] stack = new int[width + 1];
+
+		for (int iy = 0; iy < height; iy++) {
+			for (int ix = 0; ix < width; ix++) {
+				heights[ix] = mask[iy * width + ix] ? heights[ix] + 1 : 0;
+			}
+
+			// maximal rectangles ending on this row, via the histogram stack
+			int sp = 0;
+			for (int ix = 0; ix <= width; ix++) {
+				while (sp > 0 && heights[stack[sp - 1]] >= heights[ix]) {
+					int h = heights[stack[--sp]];
+					if (h <= heights[ix]) continue;
+
+					int left = sp > 0 ? stack[sp - 1] + 1 : 0;
+					int w = ix - left;
+					if (w < MIN_SIZE || h < MIN_SIZE) continue;
+
+					// can it grow downwards? then a taller block will cover it
+					boolean grows = iy + 1 < height;
+					for (int jx = left; jx < ix && grows; jx++) {
+						grows = mask[(iy + 1) * width + jx];
+					}
+					if (grows) continue;
+
+					int fy = iy - h + 1;
+					int changed = ColorRectangleFinder.getBoxSum(changedSat, width, left, fy, ix, iy + 1);
+					if (changed >= w * h * MIN_CHANGED_RATIO) {
+						found.add((long) pair << 32 | (long) left << 24 | fy << 16 | w << 8 | h);
+					}
+				}
+				stack[sp++] = ix;
+			}
+		}
+	}
+
+	public static List<CodecNadeshiko.OCCommandWeighted> getBlocks(OCImage image, OCImage lastImage) {
+		final int width = image.getWidthChars();
+		final int height = image.getHeightChars();
+
+		// blocks pay off on textured cells, so seed them with the pairs of changed ones
+		int[] changed = new int[width * height];
+		int[] pairCounts = new int[65536];
+
+		for (int iy = 0; iy < height; iy++) {
+			for (int ix = 0; ix < width; ix++) {
+				int bg = image.getBG(ix, iy);
+				int fg = image.getFG(ix, iy);
+				int q = image.getQuadrant(ix, iy);
+				if (ImageUtils.hasDistance(
+						bg, fg, q,
+						lastImage.getBG(ix, iy), lastImage.getFG(ix, iy), lastImage.getQuadrant(ix, iy)
+				)) {
+					changed[iy * width + ix] = 1;
+					if (q != 0 && q != 255 && bg != fg) {
+						int pair = Math.min(bg, fg) << 8 | Math.max(bg, fg);
+						pairCounts[pair]++;
+					}
+				}
+			}
+		}
+
+		int[] pairs = IntStream.range(0, pairCounts.length)
+				.filter((p) -> pairCounts[p] >= MIN_SIZE * MIN_SIZE)
+				.boxed()
+				.sorted((p1, p2) -> Integer.compare(pairCounts[p2], pairCounts[p1]))
+				.limit(MAX_PAIRS)
+				.mapToInt(Integer::intValue)
+				.toArray();
+
+		int[] changedSat = ColorRectangleFinder.getSummedAreaTable(changed, width, height);
+		// pair, x, y, width, height packed into one key
+		Set<Long> found = ConcurrentHashMap.newKeySet();
+		Arrays.stream(pairs).parallel().forEach((pair) -> findBlocks(image, changedSat, pair, found));
+
+		return found.stream().map((k) -> new CodecNadeshiko.OCCommandWeighted(createBlock(
+				image, (int) (k >> 24) & 0xFF, (int) (k >> 16) & 0xFF, (int) (k >> 8) & 0xFF, (int) (k & 0xFF),
+				(int) (k >> 40) & 0xFF, (int) (k >> 32) & 0xFF
+		))).collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.asie.nadeshicodec.frontend;
+
+import pl.asie.nadeshicodec.codec.CodecManager;
+
+import javax.swing.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.function.Consumer;
+
+/**
+ * Runs all work on a {@link CodecManager} on one background thread, so the
+ * event dispatch thread never waits on the encoder.
+ *
+ * Frame requests replace each other: only the latest one is answered, and
+ * encoding moves on to it after the current frame. When idle, the encoder keeps
+ * working up to a number of frames past the last request. Results and progress
+ * are delivered on the event dispatch thread.
+ */
+public class EncodeService {
+	public interface Listener {
+		void onInputFrame(int frame, BufferedImage image);
+		void onOutputFrame(int frame, BufferedImage image);
+	}
+
+	private static class Request {
+		private final int frame;
+		private final Listener listener;
+		private boolean inputSent;
+
+		private Request(int frame, Listener listener) {
+			this.frame = frame;
+			this.listener = listener;
+		}
+	}
+
+	private final CodecManager manager;
+	private final Consumer<String> statusConsumer;
+	private final int aheadFrames;
+	private final Thread thread;
+	private final Object lock = new Object();
+	private final Queue<Runnable> tasks = new ArrayDeque<>();
+	private Request pending, latest;
+	private int lastRequested = -1;
+
+	public EncodeService(CodecManager manager, Consumer<String> statusConsumer, int aheadFrames) {
+		this.manager = manager;
+		this.statusConsumer = statusConsumer;
+		this.aheadFrames = aheadFrames;
+		this.thread = new Thread(this::run, "Nadeshicodec encoder");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Runs a task on the encoder thread, before any further frame is encoded.
+	 */
+	public void submit(Runnable task) {
+		synchronized (lock) {
+			tasks.add(task);
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Asks for a frame, cancelling any request not answered yet.
+	 */
+	public void request(int frame, Listener listener) {
+		synchronized (lock) {
+			pending = latest = new Request(frame, listener);
+			lastRequested = frame;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Forgets the pending request and how far ahead to encode, as after loading another video.
+	 */
+	public void reset() {
+		synchronized (lock) {
+			pending = latest = null;
+			lastRequested = -1;
+		}
+	}
+
+	private boolean isCurrent(Request request) {
+		synchronized (lock) {
+			return latest == request;
+		}
+	}
+
+	// encoder thread only
+	private boolean hasWorkAhead() {
+		int limit = Math.min(manager.getFrameCount(), lastRequested + 1 + aheadFrames);
+		return lastRequested >= 0 && manager.getOutputFrameCount() < limit;
+	}
+
+	private void encodeNext() {
+		int next = manager.getOutputFrameCount();
+		statusConsumer.accept("Rendering frame " + (next + 1));
+		manager.getOutputFrame(next, (v) -> {});
+	}
+
+	private void run() {
+		while (true) {
+			Runnable task;
+			Request request;
+			boolean ahead;
+
+			synchronized (lock) {
+				try {
+					while (tasks.isEmpty() && pending == null && !hasWorkAhead()) {
+						lock.wait();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				task = tasks.poll();
+				request = pending;
+				ahead = hasWorkAhead();
+			}
+
+			try {
+				if (task != null) {
+					task.run();
+				} else if (request != null) {
+					serve(request);
+				} else if (ahead) {
+					encodeNext();
+					synchronized (lock) {
+						ahead = hasWorkAhead();
+					}
+					if (!ahead) {
+						statusConsumer.accept("Ready.");
+					}
+				}
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				statusConsumer.accept("Error: " + e.getMessage());
+				synchronized (lock) {
+					if (pending == request) {
+						pending = null;
+					}
+				}
+			}
+		}
+	}
+
+	private void serve(Request request) {
+		if (request.frame < 0 || request.frame >= manager.getFrameCount()) {
+			synchronized (lock) {
+				if (pending == request) pending = null;
+			}
+			return;
+		}
+
+		if (!request.inputSent) {
+			request.inputSent = true;
+			BufferedImage input = manager.getInputFrame(request.frame);
+			SwingUtilities.invokeLater(() -> {
+				if (isCurrent(request)) {
+					request.listener.onInputFrame(request.frame, input);
+				}
+			});
+		}
+
+		if (manager.getOutputFrameCount() <= request.frame) {
+			// one frame at a time, so a newer request is picked up quickly
+			encodeNext();
+			return;
+		}
+
+		BufferedImage output = manager.getOutputFrame(request.frame, (v) -> {});
+		synchronized (lock) {
+			if (pending != request) {
+				return;
+			}
+			pending = null;
+		}
+		SwingUtilities.invokeLater(() -> {
+			if (isCurrent(request)) {
+				request.listener.onOutputFrame(request.frame, output);
+			}
+		});
+		statusConsumer.accept("Ready.");
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.nadeshicodec.frontend;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Runs the jobs of a headless front end on a fixed pool, printing progress
+ * every ten seconds until all of them are done.
+ */
+final class JobRunner {
+	private JobRunner() {
+
+	}
+
+	/**
+	 * @param name Names the progress thread.
+	 * @param progress The progress line to print.
+	 */
+	static void run(String name, int threads, List<Runnable> jobs, Supplier<String> progress) {
+		if (jobs.isEmpty()) {
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, jobs.size()));
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, name + " progress");
+			t.setDaemon(true);
+			return t;
+		});
+		reporter.scheduleAtFixedRate(() -> System.out.println(progress.get()), 10, 10, TimeUnit.SECONDS);
+
+		for (Runnable job : jobs) {
+			executor.execute(job);
+		}
+
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				// keep waiting - the reporter shows progress
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		reporter.shutdownNow();
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.nadeshicodec.frontend;
+
+import pl.asie.nadeshicodec.codec.IVideoReader;
+import pl.asie.nadeshicodec.codec.VideoReaderFFMPEG;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes many videos in one JVM, so palette tables and JIT warm-up are
+ * shared. Jobs run on a fixed pool and reserve an estimate of their on-heap
+ * frame memory from a shared budget before opening their input; frame-level work of
+ * all jobs shares the common fork/join pool.
+ */
+public class NCFrontendBatch {
+	private static final long MB = 1024 * 1024;
+
+	private static class Job {
+		private final File input, output;
+
+		private Job(File input, File output) {
+			this.input = input;
+			this.output = output;
+		}
+	}
+
+	private final NCFrontendCLI options;
+	private final int memoryPermits;
+	private final Semaphore memory;
+	private final AtomicInteger framesDone = new AtomicInteger();
+	private final AtomicInteger jobsDone = new AtomicInteger();
+	private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+
+	public NCFrontendBatch(NCFrontendCLI options) {
+		this.options = options;
+		long memoryMb = options.memoryMb > 0 ? options.memoryMb : Runtime.getRuntime().maxMemory() * 3 / 4 / MB;
+		this.memoryPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryMb));
+		this.memory = new Semaphore(memoryPermits, true);
+	}
+
+	private File getOutput(File input, String name) {
+		File dir = options.output != null ? options.output : input.getAbsoluteFile().getParentFile();
+		return new File(dir, name + ".bin");
+	}
+
+	private List<Job> readJobs() throws IOException {
+		List<Job> jobs = new ArrayList<>();
+		if (options.input.isDirectory()) {
+			File[] files = options.input.listFiles((f) -> f.isFile() && !f.isHidden() && !f.getName().endsWith(".bin"));
+			if (files != null) {
+				Arrays.sort(files);
+				for (File f : files) {
+					jobs.add(new Job(f, getOutput(f, f.getName())));
+				}
+			}
+		} else {
+			File base = options.input.getAbsoluteFile().getParentFile();
+			for (String line : Files.readAllLines(options.input.toPath(), StandardCharsets.UTF_8)) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+
+				String[] parts = line.split("\\s+");
+				File input = new File(parts[0]);
+				if (!input.isAbsolute()) {
+					input = new File(base, parts[0]);
+				}
+
+				File output;
+				if (parts.length >= 2) {
+					output = new File(parts[1]);
+					if (!output.isAbsolute()) {
+						output = new File(options.output != null ? options.output : base, parts[1]);
+					}
+				} else {
+					output = getOutput(input, input.getName());
+				}
+				jobs.add(new Job(input, output));
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * @return The heap a job of this many frames needs. Decoded and filtered frames
+	 *         are memory-mapped, off the heap; the codec keeps an OCImage (three
+	 *         bytes per cell), the stream data and statistics of every frame.
+	 */
+	private long estimateHeap(int frames) {
+		long pixels = (long) options.maxWidth * options.maxHeight;
+		long cells = pixels / 8;
+		// stream data averages well under a byte per cell; statistics and list entries ~128 bytes
+		long perFrame = cells * 3 + cells + 128;
+		// frames being filtered, quantized or looked ahead at, as TYPE_INT_RGB or OCImages
+		long working = pixels * 4 * (4 + options.temporalDenoise) + cells * 3 * (options.lookahead + 1);
+		return frames * perFrame + working;
+	}
+
+	private void runJob(Job job) {
+		int permits = 0;
+		IVideoReader reader = null;
+		try {
+			// reserve before opening, as reading starts straight away; the frame count
+			// comes from the container's duration and the size from the largest allowed
+			double duration = VideoReaderFFMPEG.probeDuration(job.input);
+			long estimateMb = duration >= 0 ? estimateHeap((int) Math.ceil(duration * options.framerate) + 1) / MB + 1 : memoryPermits;
+			// a job larger than the whole budget, or of unknown length, runs on its own
+			permits = (int) Math.min(estimateMb, memoryPermits);
+			memory.acquire(permits);
+
+			reader = options.createReader(job.input);
+			int frames = reader.getFrameCount();
+			if (frames <= 0) {
+				throw new IOException("no frames found");
+			}
+
+			System.out.println("Starting " + job.input + " (" + frames + " frames, ~" + estimateMb + " MB)");
+			long time = System.currentTimeMillis();
+			File metrics = options.metricsFile != null ? new File(options.metricsFile, job.output.getName() + ".csv") : null;
+			options.encode(job.input, reader, job.output, metrics, (a) -> framesDone.incrementAndGet());
+			time = System.currentTimeMillis() - time;
+			System.out.println("Finished " + job.input + " -> " + job.output + " (" + job.output.length() + " bytes) in " + time + " ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failures.add(job.input + ": interrupted");
+		} catch (Exception e) {
+			System.err.println("Could not encode " + job.input + ": " + e);
+			failures.add(job.input + ": " + String.valueOf(e));
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					System.err.println("Could not close " + job.input + ": " + e.getMessage());
+				}
+			}
+			if (permits > 0) {
+				memory.release(permits);
+			}
+			jobsDone.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return The process exit code.
+	 */
+	public int run() {
+		List<Job> jobs;
+		try {
+			jobs = readJobs();
+		} catch (IOException e) {
+			System.err.println("Could not read " + options.input + ": " + e.getMessage());
+			return 2;
+		}
+
+		if (jobs.isEmpty()) {
+			System.err.println("Nothing to encode in " + options.input + "!");
+			return 2;
+		}
+		if (options.metricsFile != null) {
+			options.metricsFile.mkdirs();
+		}
+		if (options.output != null) {
+			options.output.mkdirs();
+		}
+
+		long startTime = System.currentTimeMillis();
+		List<Runnable> tasks = new ArrayList<>();
+		for (Job job : jobs) {
+			tasks.add(() -> runJob(job));
+		}
+		JobRunner.run("batch", options.jobs, tasks, () -> String.format("Progress: %d/%d videos, %d frames, %.2f frames/s",
+				jobsDone.get(), jobs.size(), framesDone.get(), framesDone.get() / ((System.currentTimeMillis() - startTime) / 1000.0)));
+
+		double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+		System.out.println(String.format("Encoded %d/%d videos, %d frames in %.1f s (%.2f frames/s)",
+				jobs.size() - failures.size(), jobs.size(), framesDone.get(), seconds, framesDone.get() / seconds));
+		for (String failure : failures) {
+			System.out.println("Failed: " + failure);
+		}
+		return failures.isEmpty() ? 0 : 3;
+	}
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.nadeshicodec.frontend;
+
+import com.google.common.collect.ImmutableMap;
+import pl.asie.nadeshicodec.codec.*;
+import pl.asie.nadeshicodec.codec.nadeshiko.CodecNadeshiko;
+import pl.asie.nadeshicodec.util.DitherMatrix;
+import pl.asie.nadeshicodec.util.ImageUtils;
+import pl.asie.nadeshicodec.util.colorspace.DistanceMetric;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Headless encoder front end. Never touches AWT windowing or Swing.
+ */
+public class NCFrontendCLI {
+	public static final Map<String, DitherMatrix> DITHER_OPTIONS = ImmutableMap.of(
+			"none", new DitherMatrix(),
+			"2x2", new DitherMatrix(new int[]{0,2,3,1}),
+			"floyd-steinberg", DitherMatrix.floydSteinberg(0.85f, 48f),
+			"atkinson", DitherMatrix.atkinson(1.0f, 48f)
+	);
+
+	private static final String USAGE = String.join("\n",
+			"Usage: nadeshicodec [options] <input> [output]",
+			"       nadeshicodec --batch [options] <directory or manifest> [output directory]",
+			"       nadeshicodec --sweep <grid> [options] <input> [output CSV]",
+			"  -o, --output <file>        output file (default: input name + .bin)",
+			"  --fps <n>                  frame rate (default: 20)",
+			"  --size <w>x<h>             maximum size in pixels, 2x4 per character (default: 320x200)",
+			"  --tier <1|2|3>             maximum size of a screen tier (100x64, 160x100, 320x200)",
+			"  --dither <name>            " + String.join(", ", DITHER_OPTIONS.keySet()) + " (default: 2x2)",
+			"  --budget <n>               average draw call budget per frame (default: 254)",
+			"  --single-pass              do not plan budgets from a complexity pre-scan",
+			"  --lookahead <n>            frames of lookahead (default: 0)",
+			"  --metric <name>            redmean, lab, yuv (default: redmean)",
+			"  --hysteresis <n>           keep a displayed cell unless the new best one is more than a grey step",
+			"                             of n (0-255) per pixel better, against flicker; 0 to disable (default: 0)",
+			"  --denoise <n>              median prefilter radius, 0 to disable (default: 0)",
+			"  --temporal-denoise <n>     temporal prefilter over n frames, 0 to disable (default: 0)",
+			"  --threads <n>              worker threads (default: all cores)",
+			"  --blocks                   also use two-colour block commands (needs the matching rin.lua)",
+			"  --aligned                  pack frames into 512-byte drive sectors (needs the matching rin.lua)",
+			"  --compress                 LZ compress frames, for fewer sector reads (needs the matching rin.lua)",
+			"  --metrics <file>           write per-frame statistics as CSV (a directory with --batch)",
+			"  --checkpoint <n>           save progress every n frames to <output>.ckpt, and resume from it",
+			"  --batch                    encode every file in a directory, or every line (input [output]) of a manifest",
+			"  --sweep <grid>             encode under every combination of a grid such as \"dither=none,2x2;budget=128,254\"",
+			"                             and tabulate time, bytes, cost and distortion; sweeps dither, budget, lookahead,",
+			"                             metric, hysteresis, blocks, aligned, compress and single-pass (output default: input + .sweep.csv)",
+			"  --jobs <n>                 videos (or --sweep configurations) encoded at once (default: 2)",
+			"  --memory <MB>              heap shared by --batch jobs for per-frame encoder state (default: 3/4 of the heap)"
+	);
+
+	File input, output, metricsFile;
+	double framerate = 20;
+	int maxWidth = 320, maxHeight = 200;
+	String dither = "2x2";
+	int budget = -1;
+	boolean analyze = true;
+	int lookahead = 0;
+	DistanceMetric metric = DistanceMetric.REDMEAN;
+	int hysteresis = 0;
+	int denoise = 0;
+	int temporalDenoise = 0;
+	int threads = 0;
+	boolean batch = false;
+	boolean blocks = false;
+	boolean aligned = false;
+	boolean compress = false;
+	int jobs = 2;
+	long memoryMb = 0;
+	int checkpointInterval = 0;
+	Map<String, List<String>> sweepAxes;
+
+	public static boolean isCommandLine(String[] args) {
+		return args.length >= 2 || (args.length >= 1 && args[0].startsWith("-"));
+	}
+
+	private static int parseInt(String name, String value, int min, int max) {
+		try {
+			int v = Integer.parseInt(value);
+			if (v < min || v > max) {
+				throw new IllegalArgumentException(name + " must be between " + min + " and " + max + "!");
+			}
+			return v;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number for " + name + ": " + value);
+		}
+	}
+
+	void parse(String[] args) {
+		List<String> positional = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (!arg.startsWith("-")) {
+				positional.add(arg);
+				continue;
+			}
+
+			if (arg.equals("--single-pass")) {
+				analyze = false;
+				continue;
+			} else if (arg.equals("--batch")) {
+				batch = true;
+				continue;
+			} else if (arg.equals("--blocks")) {
+				blocks = true;
+				continue;
+			} else if (arg.equals("--aligned")) {
+				aligned = true;
+				continue;
+			} else if (arg.equals("--compress")) {
+				compress = true;
+				continue;
+			}
+
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + arg + "!");
+			}
+			String value = args[++i];
+
+			switch (arg) {
+				case "-o":
+				case "--output":
+					output = new File(value);
+					break;
+				case "--fps":
+					try {
+						framerate = Double.parseDouble(value);
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Invalid number for " + arg + ": " + value);
+					}
+					if (framerate <= 0) {
+						throw new IllegalArgumentException("--fps must be positive!");
+					}
+					break;
+				case "--size": {
+					String[] parts = value.toLowerCase(Locale.ROOT).split("x");
+					if (parts.length != 2) {
+						throw new IllegalArgumentException("Invalid size: " + value);
+					}
+					maxWidth = parseInt(arg, parts[0], 2, 510);
+					maxHeight = parseInt(arg, parts[1], 4, 1020);
+				} break;
+				case "--tier":
+					switch (parseInt(arg, value, 1, 3)) {
+						case 1: maxWidth = 100; maxHeight = 64; break;
+						case 2: maxWidth = 160; maxHeight = 100; break;
+						default: maxWidth = 320; maxHeight = 200; break;
+					}
+					break;
+				case "--dither":
+					if (!DITHER_OPTIONS.containsKey(value)) {
+						throw new IllegalArgumentException("Unknown dither: " + value);
+					}
+					dither = value;
+					break;
+				case "--budget":
+					budget = parseInt(arg, value, 1, Integer.MAX_VALUE);
+					break;
+				case "--lookahead":
+					lookahead = parseInt(arg, value, 0, 64);
+					break;
+				case "--metric":
+					try {
+						metric = DistanceMetric.valueOf(value.toUpperCase(Locale.ROOT));
+					} catch (IllegalArgumentException e) {
+						throw new IllegalArgumentException("Unknown metric: " + value);
+					}
+					break;
+				case "--hysteresis":
+					hysteresis = parseInt(arg, value, 0, 255);
+					break;
+				case "--denoise":
+					denoise = parseInt(arg, value, 0, 8);
+					break;
+				case "--temporal-denoise":
+					temporalDenoise = parseInt(arg, value, 0, 16);
+					break;
+				case "--threads":
+					threads = parseInt(arg, value, 1, 1024);
+					break;
+				case "--metrics":
+					metricsFile = new File(value);
+					break;
+				case "--checkpoint":
+					checkpointInterval = parseInt(arg, value, 0, Integer.MAX_VALUE);
+					break;
+				case "--sweep":
+					sweepAxes = NCFrontendSweep.parseAxes(value);
+					break;
+				case "--jobs":
+					jobs = parseInt(arg, value, 1, 256);
+					break;
+				case "--memory":
+					memoryMb = parseInt(arg, value, 1, Integer.MAX_VALUE);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+		}
+
+		if (batch && sweepAxes != null) {
+			throw new IllegalArgumentException("Cannot combine --batch and --sweep!");
+		}
+		if (positional.isEmpty() || positional.size() > 2) {
+			throw new IllegalArgumentException("Expected an input file and optionally an output file!");
+		}
+		input = new File(positional.get(0));
+		if (positional.size() == 2) {
+			if (output != null) {
+				throw new IllegalArgumentException("Output file given twice!");
+			}
+			output = new File(positional.get(1));
+		} else if (output == null && !batch) {
+			output = new File(input.getPath() + (sweepAxes != null ? ".sweep.csv" : ".bin"));
+		}
+	}
+
+	IVideoReader createReader(File input) throws IOException {
+		IVideoReader reader = new VideoReaderFFMPEG(input, framerate, System.out::println,
+				(dims) -> CodecUtils.scaleDimensions(dims, maxWidth, maxHeight));
+
+		List<IFrameFilter> filters = new ArrayList<>();
+		if (temporalDenoise > 0) {
+			filters.add(new FrameFilterTemporal(temporalDenoise));
+		}
+		if (denoise > 0) {
+			filters.add(new FrameFilterMedian(denoise));
+		}
+		return filters.isEmpty() ? reader : new VideoReaderFiltered(reader, filters);
+	}
+
+	CodecNadeshiko createCodec() {
+		CodecNadeshiko codec = new CodecNadeshiko(DITHER_OPTIONS.get(dither));
+		codec.setDistanceMetric(metric);
+		codec.setLookahead(lookahead);
+		codec.setHysteresis(ImageUtils.cheapColorDistance(0x000000, hysteresis * 0x010101));
+		codec.setBlocks(blocks);
+		codec.setSectorAligned(aligned);
+		codec.setCompressed(compress);
+		if (budget > 0) {
+			codec.setFrameBudget(budget);
+		}
+		return codec;
+	}
+
+	/**
+	 * @return A key which changes whenever the input or any parameter affecting the output does.
+	 */
+	String getParameterKey(File input) {
+		return String.join(";",
+				input.getAbsolutePath(), Long.toString(input.length()), Long.toString(input.lastModified()),
+				Double.toString(framerate), maxWidth + "x" + maxHeight, dither, Integer.toString(budget),
+				Boolean.toString(analyze), Integer.toString(lookahead), metric.name(), Integer.toString(hysteresis),
+				Integer.toString(denoise), Integer.toString(temporalDenoise), Boolean.toString(blocks)
+		);
+	}
+
+	/**
+	 * Encodes one video.
+	 *
+	 * @param progress Receives the number of every frame as it is started.
+	 */
+	void encode(File input, IVideoReader reader, File output, File metricsFile, Consumer<Integer> progress) throws IOException {
+		CodecNadeshiko codec = createCodec();
+		CodecManager manager = new CodecManager();
+		manager.setReaderCodec(reader, codec);
+		if (checkpointInterval > 0) {
+			manager.setCheckpoint(new File(output.getPath() + ".ckpt"), checkpointInterval, getParameterKey(input));
+			int resumed = manager.resume();
+			if (resumed > 0) {
+				System.out.println("Resuming " + input + " from frame " + resumed);
+			}
+		}
+		if (analyze) {
+			manager.analyze();
+		}
+
+		manager.getOutputFrame(manager.getFrameCount() - 1, progress);
+		manager.write(output);
+		if (metricsFile != null) {
+			writeMetrics(metricsFile, codec);
+		}
+		manager.clearCheckpoint();
+	}
+
+	static void writeMetrics(File file, ICodec codec) throws IOException {
+		try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+			writer.println(FrameStatistics.CSV_HEADER);
+			for (int i = 0; i < codec.getFrameCount(); i++) {
+				codec.getFrameStatistics(i).ifPresent((s) -> writer.println(s.toCsvRow()));
+			}
+		}
+	}
+
+	/**
+	 * @return The process exit code.
+	 */
+	public static int run(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+
+		for (String arg : args) {
+			if (arg.equals("-h") || arg.equals("--help")) {
+				System.out.println(USAGE);
+				return 0;
+			}
+		}
+
+		NCFrontendCLI cli = new NCFrontendCLI();
+		try {
+			cli.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			return 1;
+		}
+
+		if (cli.threads > 0) {
+			// only honoured before the common pool is first used
+			System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism", Integer.toString(cli.threads));
+		}
+
+		if (cli.batch) {
+			return new NCFrontendBatch(cli).run();
+		} else if (cli.sweepAxes != null) {
+			return new NCFrontendSweep(cli, args).run();
+		}
+
+		long time = System.currentTimeMillis();
+		try (IVideoReader reader = cli.createReader(cli.input)) {
+			if (reader.getFrameCount() <= 0) {
+				System.err.println("No frames found in " + cli.input + "!");
+				return 2;
+			}
+
+			cli.encode(cli.input, reader, cli.output, cli.metricsFile, (a) -> {
+				System.out.println("Rendering frame " + a);
+			});
+
+			time = System.currentTimeMillis() - time;
+			System.out.println("Encoded " + reader.getFrameCount() + " frames to " + cli.output + " (" + cli.output.length() + " bytes) in " + time + " ms");
+			return 0;
+		} catch (IOException e) {
+			System.err.println("Could not encode " + cli.input + ": " + e.getMessage());
+			return 2;
+		}
+	}
+}
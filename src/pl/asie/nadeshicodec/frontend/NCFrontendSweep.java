@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.nadeshicodec.frontend;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import pl.asie.nadeshicodec.codec.CodecManager;
+import pl.asie.nadeshicodec.codec.IVideoReader;
+import pl.asie.nadeshicodec.codec.nadeshiko.CodecNadeshiko;
+import pl.asie.nadeshicodec.codec.nadeshiko.QuantizedFrameCache;
+import pl.asie.nadeshicodec.util.ImageUtils;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes one video under every combination of a grid of parameters, to
+ * compare quality against cost. The input is decoded and filtered once, and
+ * configurations share one cache of quantized frames; they run on a fixed
+ * pool, as with --batch; configurations sharing a dither and metric are
+ * queued together, so that they keep pace and frames leave the cache soon.
+ *
+ * Distortion is measured against the input frames rather than the quantized
+ * targets, so that it stays comparable between dithers and metrics.
+ */
+public class NCFrontendSweep {
+	private static final Set<String> FLAG_AXES = ImmutableSet.of("blocks", "aligned", "compress", "single-pass");
+	private static final Set<String> VALUE_AXES = ImmutableSet.of("dither", "budget", "lookahead", "metric", "hysteresis");
+
+	private static class Config {
+		private final List<String> values;
+		private NCFrontendCLI options;
+		private long timeMs, bytes, cost;
+		private double distortion;
+		private boolean pareto;
+		private String error;
+
+		private Config(List<String> values) {
+			this.values = values;
+		}
+
+		private boolean dominates(Config other) {
+			return cost <= other.cost && bytes <= other.bytes && distortion <= other.distortion
+					&& (cost < other.cost || bytes < other.bytes || distortion < other.distortion);
+		}
+	}
+
+	private final NCFrontendCLI options;
+	private final String[] args;
+	private final List<String> axes;
+	private final List<Config> configs = new ArrayList<>();
+	private final AtomicInteger framesDone = new AtomicInteger();
+	private final AtomicInteger configsDone = new AtomicInteger();
+
+	/**
+	 * @param args The command line, whose other options apply to every configuration.
+	 */
+	public NCFrontendSweep(NCFrontendCLI options, String[] args) {
+		this.options = options;
+		this.args = args;
+		this.axes = new ArrayList<>(options.sweepAxes.keySet());
+		for (List<String> values : Lists.cartesianProduct(new ArrayList<>(options.sweepAxes.values()))) {
+			configs.add(new Config(values));
+		}
+	}
+
+	/**
+	 * Parses a grid such as "dither=none,2x2;budget=128,254;blocks=false,true".
+	 */
+	static Map<String, List<String>> parseAxes(String spec) {
+		Map<String, List<String>> axes = new LinkedHashMap<>();
+		for (String part : spec.split(";")) {
+			part = part.trim();
+			if (part.isEmpty()) {
+				continue;
+			}
+
+			int eq = part.indexOf('=');
+			if (eq <= 0 || eq == part.length() - 1) {
+				throw new IllegalArgumentException("Invalid sweep axis: " + part);
+			}
+			String name = part.substring(0, eq).trim();
+			if (!FLAG_AXES.contains(name) && !VALUE_AXES.contains(name)) {
+				throw new IllegalArgumentException("Cannot sweep " + name + "; try " + String.join(", ", VALUE_AXES) + ", " + String.join(", ", FLAG_AXES));
+			}
+			if (axes.containsKey(name)) {
+				throw new IllegalArgumentException("Sweep axis given twice: " + name);
+			}
+
+			List<String> values = new ArrayList<>();
+			for (String value : part.substring(eq + 1).split(",")) {
+				value = value.trim();
+				if (FLAG_AXES.contains(name) && !value.equals("true") && !value.equals("false")) {
+					throw new IllegalArgumentException("Sweep axis " + name + " takes true or false, not " + value);
+				}
+				if (!value.isEmpty() && !values.contains(value)) {
+					values.add(value);
+				}
+			}
+			if (values.isEmpty()) {
+				throw new IllegalArgumentException("No values for sweep axis " + name);
+			}
+			axes.put(name, values);
+		}
+
+		if (axes.isEmpty()) {
+			throw new IllegalArgumentException("Nothing to sweep!");
+		}
+		return axes;
+	}
+
+	/**
+	 * @return The options of a configuration: the command line, with the swept options replaced.
+	 */
+	private NCFrontendCLI createOptions(Config config) {
+		List<String> configArgs = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			String name = args[i].startsWith("--") ? args[i].substring(2) : "";
+			if (name.equals("sweep") || VALUE_AXES.contains(name) && axes.contains(name)) {
+				i++;
+			} else if (!FLAG_AXES.contains(name) || !axes.contains(name)) {
+				configArgs.add(args[i]);
+			}
+		}
+
+		for (int i = 0; i < axes.size(); i++) {
+			String name = axes.get(i);
+			String value = config.values.get(i);
+			if (VALUE_AXES.contains(name)) {
+				configArgs.add("--" + name);
+				configArgs.add(value);
+			} else if (value.equals("true")) {
+				configArgs.add("--" + name);
+			}
+		}
+
+		NCFrontendCLI configOptions = new NCFrontendCLI();
+		configOptions.parse(configArgs.toArray(new String[0]));
+		return configOptions;
+	}
+
+	private void runConfig(Config config, IVideoReader reader, QuantizedFrameCache cache) {
+		CodecNadeshiko codec = null;
+		try {
+			codec = config.options.createCodec();
+			codec.setQuantizedFrameCache(cache);
+			CodecManager manager = new CodecManager();
+			manager.setReaderCodec(reader, codec);
+
+			long time = System.currentTimeMillis();
+			if (config.options.analyze) {
+				manager.analyze();
+			}
+			manager.getOutputFrame(manager.getFrameCount() - 1, (a) -> framesDone.incrementAndGet());
+			config.timeMs = System.currentTimeMillis() - time;
+
+			CountingOutputStream stream = new CountingOutputStream(ByteStreams.nullOutputStream());
+			codec.write(stream);
+			config.bytes = stream.getCount();
+
+			double distortion = 0;
+			for (int i = 0; i < codec.getFrameCount(); i++) {
+				config.cost += codec.getFrameStatistics(i).map((s) -> s.getCost()).orElse(0);
+				BufferedImage input = reader.getFrame(i);
+				BufferedImage output = codec.getFrame(i);
+				distortion += ImageUtils.getDistance(input, output, 0, 0,
+						Math.min(input.getWidth(), output.getWidth()), Math.min(input.getHeight(), output.getHeight()));
+			}
+			// in millions per frame, like the per-frame statistics
+			config.distortion = distortion / Math.max(1, codec.getFrameCount()) / 1000000;
+		} catch (Exception e) {
+			System.err.println("Could not encode " + getName(config) + ": " + e.getMessage());
+			config.error = String.valueOf(e.getMessage());
+		} finally {
+			if (codec != null) {
+				// stop holding frames back for it, whether it finished or not
+				codec.setQuantizedFrameCache(null);
+			}
+			configsDone.incrementAndGet();
+		}
+	}
+
+	private String getName(Config config) {
+		List<String> parts = new ArrayList<>();
+		for (int i = 0; i < axes.size(); i++) {
+			parts.add(axes.get(i) + "=" + config.values.get(i));
+		}
+		return String.join(" ", parts);
+	}
+
+	private void markPareto() {
+		for (Config config : configs) {
+			config.pareto = config.error == null;
+			for (Config other : configs) {
+				if (other.error == null && other.dominates(config)) {
+					config.pareto = false;
+					break;
+				}
+			}
+		}
+	}
+
+	private void printTable(int frames) {
+		StringBuilder format = new StringBuilder();
+		List<Object> header = new ArrayList<>();
+		for (String axis : axes) {
+			int width = axis.length();
+			for (Config config : configs) {
+				width = Math.max(width, config.values.get(axes.indexOf(axis)).length());
+			}
+			format.append("%-").append(width).append("s  ");
+			header.add(axis);
+		}
+		String valueFormat = format + "%10s  %10s  %10s  %8s  %10s  %s";
+		header.addAll(Arrays.asList("time_ms", "bytes", "cost", "cost/fr", "distortion", ""));
+		System.out.println(String.format(valueFormat, header.toArray()));
+
+		for (Config config : configs) {
+			List<Object> row = new ArrayList<>(config.values);
+			if (config.error != null) {
+				row.addAll(Arrays.asList("-", "-", "-", "-", "-", "failed: " + config.error));
+			} else {
+				row.addAll(Arrays.asList(config.timeMs, config.bytes, config.cost,
+						String.format(Locale.ROOT, "%.1f", (double) config.cost / frames),
+						String.format(Locale.ROOT, "%.3f", config.distortion), config.pareto ? "*" : ""));
+			}
+			System.out.println(String.format(valueFormat, row.toArray()));
+		}
+		System.out.println("* - no other configuration has lower or equal cost, bytes and distortion");
+	}
+
+	private void writeCsv() throws IOException {
+		try (PrintWriter writer = new PrintWriter(options.output, "UTF-8")) {
+			writer.println(String.join(",", axes) + ",time_ms,bytes,cost,distortion,pareto,error");
+			for (Config config : configs) {
+				writer.println(String.join(",", config.values) + "," + config.timeMs + "," + config.bytes + "," + config.cost + ","
+						+ config.distortion + "," + (config.pareto ? 1 : 0) + "," + (config.error != null ? config.error.replace(',', ';') : ""));
+			}
+		}
+	}
+
+	/**
+	 * @return The process exit code.
+	 */
+	public int run() {
+		try {
+			for (Config config : configs) {
+				config.options = createOptions(config);
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println("Invalid sweep: " + e.getMessage());
+			return 1;
+		}
+
+		IVideoReader reader;
+		int frames;
+		try {
+			reader = options.createReader(options.input);
+			frames = reader.getFrameCount();
+			if (frames <= 0) {
+				System.err.println("No frames found in " + options.input + "!");
+				reader.close();
+				return 2;
+			}
+		} catch (IOException e) {
+			System.err.println("Could not read " + options.input + ": " + e.getMessage());
+			return 2;
+		}
+
+		long startTime = System.currentTimeMillis();
+		// decode and filter everything before the configurations start sharing it
+		reader.getFrame(frames - 1);
+		System.out.println("Decoded " + frames + " frames in " + (System.currentTimeMillis() - startTime) + " ms, sweeping " + configs.size() + " configurations");
+
+		QuantizedFrameCache cache = new QuantizedFrameCache();
+		List<Config> queue = new ArrayList<>(configs);
+		queue.sort(Comparator.comparing((Config c) -> c.options.dither).thenComparing((c) -> c.options.metric));
+		List<Runnable> tasks = new ArrayList<>();
+		for (Config config : queue) {
+			tasks.add(() -> runConfig(config, reader, cache));
+		}
+		JobRunner.run("sweep", options.jobs, tasks, () -> String.format("Progress: %d/%d configurations, %d/%d frames",
+				configsDone.get(), configs.size(), framesDone.get(), (long) frames * configs.size()));
+		try {
+			reader.close();
+		} catch (IOException e) {
+			System.err.println("Could not close " + options.input + ": " + e.getMessage());
+		}
+
+		markPareto();
+		System.out.println(String.format("Swept %d configurations of %d frames in %.1f s, quantizing %d of %d shared frame requests",
+				configs.size(), frames, (System.currentTimeMillis() - startTime) / 1000.0, cache.getQuantizedCount(), cache.getRequestCount()));
+		printTable(frames);
+
+		try {
+			writeCsv();
+			System.out.println("Results written to " + options.output);
+		} catch (IOException e) {
+			System.err.println("Could not write " + options.output + ": " + e.getMessage());
+			return 2;
+		}
+
+		for (Config config : configs) {
+			if (config.error != null) {
+				return 3;
+			}
+		}
+		return 0;
+	}
+}
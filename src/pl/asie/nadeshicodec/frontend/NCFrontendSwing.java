@@ -21,7 +21,12 @@ package pl.asie.nadeshicodec.frontend;
 
 import pl.asie.nadeshicodec.codec.CodecManager;
 import pl.asie.nadeshicodec.codec.CodecUtils;
+import pl.asie.nadeshicodec.codec.FrameFilterMedian;
+import pl.asie.nadeshicodec.codec.FrameFilterTemporal;
+import pl.asie.nadeshicodec.codec.IFrameFilter;
+import pl.asie.nadeshicodec.codec.IVideoReader;
 import pl.asie.nadeshicodec.codec.VideoReaderFFMPEG;
+import pl.asie.nadeshicodec.codec.VideoReaderFiltered;
 import pl.asie.nadeshicodec.codec.nadeshiko.CodecNadeshiko;
 import pl.asie.nadeshicodec.util.DitherMatrix;
 
@@ -34,6 +39,8 @@ import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Consumer;
 
@@ -49,10 +56,36 @@ public class NCFrontendSwing {
 	private final SimpleCanvas canvasInput, canvasOutput;
 	private final CodecManager manager;
 	private final JComboBox<String> ditherMethodBox;
+	private final JComboBox<String> denoiseBox;
+	private final JCheckBox temporalDenoiseBox;
 	private final Map<String, DitherMatrix> ditherOptions;
 
 	private final JButton playbackToggle;
-	private boolean autoPlayback = false;
+	private final JCheckBox dropFramesBox;
+	private final PlaybackEngine playback;
+	// set while playback moves the slider, which should not request frames itself
+	private boolean playbackUpdate;
+
+	private final EncodeService encodeService;
+	private IVideoReader reader;
+	private final EncodeService.Listener frameListener = new EncodeService.Listener() {
+		@Override
+		public void onInputFrame(int frame, BufferedImage image) {
+			Dimension canvDim = new Dimension(image.getWidth() * 2, image.getHeight() * 2);
+			if (!canvDim.equals(canvasInput.getPreferredSize())) {
+				canvasInput.setPreferredSize(canvDim);
+				canvasOutput.setPreferredSize(canvDim);
+				window.pack();
+			}
+
+			canvasInput.setImage(image);
+		}
+
+		@Override
+		public void onOutputFrame(int frame, BufferedImage image) {
+			canvasOutput.setImage(image);
+		}
+	};
 
 	public NCFrontendSwing(String windowName, CodecManager manager, Map<String, DitherMatrix> ditherOptions, String defaultDitherOption) {
 		this.ditherOptions = ditherOptions;
@@ -80,14 +113,16 @@ public class NCFrontendSwing {
 			if (ditherKeys[i].equals(defaultDitherOption))
 				ditherMethodBox.setSelectedIndex(i);
 		}
-		add(optsPanel, playbackToggle = new JButton("Toggle Playback"), (c) -> { c.gridx = 0; c.gridy = 1; c.anchor = GridBagConstraints.LINE_START; });
+		add(optsPanel, new JLabel("Denoise:"), (c) -> { c.gridx = 0; c.gridy = 1; c.anchor = GridBagConstraints.LINE_START; });
+		add(optsPanel, denoiseBox = new JComboBox<>(new String[] { "none", "3x3 median", "5x5 median" }), (c) -> { c.gridx = 1; c.gridy = 1; c.anchor = GridBagConstraints.LINE_START; });
+		add(optsPanel, temporalDenoiseBox = new JCheckBox("Temporal"), (c) -> { c.gridx = 2; c.gridy = 1; c.anchor = GridBagConstraints.LINE_START; });
+		add(optsPanel, playbackToggle = new JButton("Toggle Playback"), (c) -> { c.gridx = 0; c.gridy = 2; c.anchor = GridBagConstraints.LINE_START; });
+		add(optsPanel, dropFramesBox = new JCheckBox("Drop late frames", true), (c) -> { c.gridx = 1; c.gridy = 2; c.anchor = GridBagConstraints.LINE_START; });
 
 		add(panel, frameNumberLabel = new JLabel("..."), (c) -> { c.gridx = 0; c.gridy = 3; c.anchor = GridBagConstraints.LINE_START; });
 		add(panel, optsPanel, (c) -> { c.gridx = 0; c.gridy = 4; c.anchor = GridBagConstraints.LINE_START; });
 
-		playbackToggle.addActionListener((event) -> {
-			autoPlayback = !autoPlayback;
-		});
+		playbackToggle.addActionListener((event) -> togglePlayback());
 
 		frameSlider.setSnapToTicks(true);
 		frameSlider.addChangeListener(this::onFrameSliderChanged);
@@ -116,9 +151,43 @@ public class NCFrontendSwing {
 		window.setVisible(true);
 
 		this.manager = manager;
+		this.encodeService = new EncodeService(manager, this::setStatus, 100);
+		this.playback = new PlaybackEngine(manager, encodeService, 20, 40, new PlaybackEngine.Display() {
+			@Override
+			public void show(int frame, BufferedImage input, BufferedImage output, int dropped) {
+				frameListener.onInputFrame(frame, input);
+				frameListener.onOutputFrame(frame, output);
+				playbackUpdate = true;
+				setFrame(frame);
+				playbackUpdate = false;
+				statusLabel.setText(dropped > 0 ? "Playing, " + dropped + " frames dropped" : "Playing");
+			}
+
+			@Override
+			public void stopped() {
+				statusLabel.setText("Ready.");
+			}
+		});
 		setFrameCount(manager.getFrameCount());
 	}
 
+	public void togglePlayback() {
+		if (playback.isPlaying()) {
+			playback.stop();
+			statusLabel.setText("Ready.");
+		} else {
+			int frame = getFrame() < getFrameCount() - 1 ? getFrame() : 0;
+			playback.start(frame, dropFramesBox.isSelected() ? PlaybackEngine.DropPolicy.DROP : PlaybackEngine.DropPolicy.WAIT);
+		}
+	}
+
+	private void setStatus(String status) {
+		SwingUtilities.invokeLater(() -> {
+			statusLabel.setText(status);
+			statusLabel.repaint();
+		});
+	}
+
 	public void onOpen(ActionEvent event) {
 		JFileChooser fc = new JFileChooser();
 		fc.setFileSelectionMode(JFileChooser.FILES_ONLY);
@@ -139,13 +208,9 @@ public class NCFrontendSwing {
 				return;
 			}
 
-			Runnable r = () -> {
-				frameSlider.setEnabled(false);
-				manager.getOutputFrame(manager.getFrameCount() - 1, frameSlider::setValue);
-				frameSlider.setEnabled(true);
-
-				statusLabel.setText("Saving...");
-				statusLabel.repaint();
+			encodeService.submit(() -> {
+				manager.getOutputFrame(manager.getFrameCount() - 1, (v) -> setStatus("Rendering frame " + v));
+				setStatus("Saving...");
 
 				// all frames rendered
 				try {
@@ -154,43 +219,57 @@ public class NCFrontendSwing {
 					throw new RuntimeException(e);
 				}
 
-				statusLabel.setText("Saved!");
-				statusLabel.repaint();
-			};
-			Thread t = new Thread(r);
-			t.start();
+				setStatus("Saved!");
+			});
 		}
 	}
 
 	public void loadFile(File f) {
-		autoPlayback = false;
+		playback.stop();
 
 		boolean ignoreAspectRatio = false;
 
-		Runnable r = () -> {
+		frameSlider.setEnabled(false);
+		encodeService.reset();
+		encodeService.submit(() -> {
 			try {
-				frameSlider.setEnabled(false);
 				//noinspection SuspiciousMethodCalls
+				IVideoReader reader = new VideoReaderFFMPEG(f, 20, this::setStatus, CodecUtils::scaleDimensionsDefault);
+
+				List<IFrameFilter> filters = new ArrayList<>();
+				if (temporalDenoiseBox.isSelected()) {
+					filters.add(new FrameFilterTemporal(3));
+				}
+				if (denoiseBox.getSelectedIndex() > 0) {
+					filters.add(new FrameFilterMedian(denoiseBox.getSelectedIndex()));
+				}
+				if (!filters.isEmpty()) {
+					reader = new VideoReaderFiltered(reader, filters);
+				}
+
 				manager.setReaderCodec(
-						new VideoReaderFFMPEG(f, 20, (a) -> {
-							statusLabel.setText(a);
-							statusLabel.repaint();
-						}, CodecUtils::scaleDimensionsDefault),
+						reader,
 						new CodecNadeshiko(ditherOptions.get(ditherMethodBox.getSelectedItem()))
 				);
-				setFrameCount(manager.getFrameCount());
-				frameSlider.setEnabled(true);
+				// frees the previous file's scratch space; it is only ever read on this thread
+				if (this.reader != null) {
+					this.reader.close();
+				}
+				this.reader = reader;
+				int frameCount = manager.getFrameCount();
+				SwingUtilities.invokeLater(() -> {
+					setFrameCount(frameCount);
+					frameSlider.setEnabled(true);
+				});
 			} catch (IOException e) {
-				frameSlider.setEnabled(true);
+				SwingUtilities.invokeLater(() -> frameSlider.setEnabled(true));
 				throw new RuntimeException(e);
 			}
-		};
-		Thread t = new Thread(r);
-		t.start();
+		});
 	}
 
-	public boolean isAutoPlayback() {
-		return autoPlayback;
+	public boolean isPlaying() {
+		return playback.isPlaying();
 	}
 
 	public int getFrameCount() {
@@ -219,26 +298,19 @@ public class NCFrontendSwing {
 	}
 
 	protected void onFrameSliderChanged(ChangeEvent event) {
-		if (frameSlider.getValue() >= 1 && manager.getFrameCount() >= 1) {
-			BufferedImage oldImage = canvasInput.getImage();
-			BufferedImage newImage = manager.getInputFrame(frameSlider.getValue() - 1);
-			Dimension canvDim = new Dimension(newImage.getWidth() * 2, newImage.getHeight() * 2);
-
-			if (!canvDim.equals(canvasInput.getPreferredSize())) {
-				canvasInput.setPreferredSize(canvDim);
-				canvasOutput.setPreferredSize(canvDim);
-				window.pack();
-			}
+		if (playbackUpdate) {
+			frameNumberLabel.setText("Frame " + frameSlider.getValue() + "/" + frameSlider.getMaximum());
+			return;
+		}
+		// moving the slider by hand stops playback
+		if (playback != null && playback.isPlaying()) {
+			playback.stop();
+		}
 
-			canvasInput.setImage(newImage);
-			canvasOutput.setImage(manager.getOutputFrame(frameSlider.getValue() - 1, (v) -> {
-				statusLabel.setText("Rendering frame " + v);
-				statusLabel.repaint();
-			}));
+		if (frameSlider.getValue() >= 1 && frameSlider.getMaximum() >= 1) {
+			encodeService.request(frameSlider.getValue() - 1, frameListener);
 		}
 		frameNumberLabel.setText("Frame " + frameSlider.getValue() + "/" + frameSlider.getMaximum());
-		statusLabel.setText("Ready.");
-		statusLabel.repaint();
 	}
 
 	private void add(JPanel panel, Component c, Consumer<GridBagConstraints> cc) {
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.asie.nadeshicodec.frontend;
+
+import pl.asie.nadeshicodec.codec.CodecManager;
+
+import javax.swing.*;
+import java.awt.image.BufferedImage;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Plays the encoded video back at a fixed frame rate. Frames are encoded and
+ * rendered ahead into a ring buffer on the encoder thread, and shown by a
+ * scheduler ticking at the frame rate.
+ */
+public class PlaybackEngine {
+	public enum DropPolicy {
+		/** Hold the last frame until the next one is ready; playback slows down. */
+		WAIT,
+		/** Keep real time; frames not ready when due are skipped. */
+		DROP
+	}
+
+	public interface Display {
+		void show(int frame, BufferedImage input, BufferedImage output, int dropped);
+		void stopped();
+	}
+
+	private static class Frame {
+		private final int frame;
+		private final BufferedImage input, output;
+
+		private Frame(int frame, BufferedImage input, BufferedImage output) {
+			this.frame = frame;
+			this.input = input;
+			this.output = output;
+		}
+	}
+
+	private final CodecManager manager;
+	private final EncodeService encodeService;
+	private final Display display;
+	private final long periodMicros;
+	private final BlockingQueue<Frame> buffer;
+	// frames off screen and out of the buffer, whose images the producer draws into again
+	private final Queue<Frame> spare = new ConcurrentLinkedQueue<>();
+	private final ScheduledExecutorService scheduler;
+	private final AtomicBoolean producing = new AtomicBoolean();
+
+	private ScheduledFuture<?> ticker;
+	private volatile int generation;
+	private volatile boolean playing;
+	private volatile DropPolicy policy = DropPolicy.DROP;
+	// next frame for the producer to render
+	private volatile int nextFrame;
+	// frame due at the next tick; scheduler thread only, apart from start()
+	private volatile int clock;
+	private int dropped;
+	// the clock starts with the first frame shown
+	private boolean started;
+	// event dispatch thread only
+	private Frame onScreen;
+
+	public PlaybackEngine(CodecManager manager, EncodeService encodeService, double framerate, int bufferSize, Display display) {
+		this.manager = manager;
+		this.encodeService = encodeService;
+		this.display = display;
+		this.periodMicros = Math.round(1000000 / framerate);
+		this.buffer = new ArrayBlockingQueue<>(bufferSize);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "Nadeshicodec playback");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	public boolean isPlaying() {
+		return playing;
+	}
+
+	public synchronized void start(int frame, DropPolicy policy) {
+		stop();
+		if (frame < 0 || frame >= manager.getFrameCount()) {
+			return;
+		}
+
+		int gen = ++generation;
+		this.policy = policy;
+		this.nextFrame = frame;
+		this.clock = frame;
+		this.dropped = 0;
+		this.started = false;
+		buffer.drainTo(spare);
+		producing.set(false);
+		playing = true;
+
+		ensureProducing(gen);
+		ticker = scheduler.scheduleAtFixedRate(() -> tick(gen), periodMicros, periodMicros, TimeUnit.MICROSECONDS);
+	}
+
+	public synchronized void stop() {
+		if (!playing) {
+			return;
+		}
+
+		playing = false;
+		generation++;
+		if (ticker != null) {
+			ticker.cancel(false);
+			ticker = null;
+		}
+		buffer.drainTo(spare);
+	}
+
+	private void ensureProducing(int gen) {
+		if (producing.compareAndSet(false, true)) {
+			encodeService.submit(() -> produce(gen));
+		}
+	}
+
+	private boolean canProduce(int gen) {
+		return playing && gen == generation && buffer.remainingCapacity() > 0 && nextFrame < manager.getFrameCount();
+	}
+
+	// encoder thread; renders one frame per task, so frame requests can interleave
+	private void produce(int gen) {
+		if (gen != generation) {
+			return;
+		}
+		if (!canProduce(gen)) {
+			producing.set(false);
+			// the consumer may have made room in the meantime
+			if (canProduce(gen)) {
+				ensureProducing(gen);
+			}
+			return;
+		}
+
+		int frame = nextFrame;
+		if (policy == DropPolicy.DROP) {
+			// no point rendering a frame which is already late
+			frame = Math.min(Math.max(frame, clock), manager.getFrameCount() - 1);
+		}
+
+		Frame reuse = spare.poll();
+		BufferedImage output = manager.getOutputFrame(frame, (v) -> {}, reuse != null ? reuse.output : null);
+		BufferedImage input = manager.getInputFrame(frame, reuse != null ? reuse.input : null);
+		if (gen != generation) {
+			return;
+		}
+		buffer.offer(new Frame(frame, input, output));
+		nextFrame = frame + 1;
+		encodeService.submit(() -> produce(gen));
+	}
+
+	// scheduler thread
+	private void tick(int gen) {
+		if (gen != generation) {
+			return;
+		}
+
+		if (!started) {
+			if (buffer.isEmpty()) {
+				return;
+			}
+			started = true;
+		}
+
+		int frameCount = manager.getFrameCount();
+		Frame shown = null;
+		Frame head;
+
+		if (policy == DropPolicy.DROP) {
+			while ((head = buffer.peek()) != null && head.frame <= clock) {
+				if (shown != null) {
+					// skipped, never shown
+					spare.offer(shown);
+				}
+				shown = buffer.poll();
+			}
+			if (shown == null || shown.frame != clock) {
+				dropped++;
+			}
+			clock++;
+		} else {
+			shown = buffer.poll();
+			if (shown != null) {
+				clock = shown.frame + 1;
+			}
+		}
+		ensureProducing(gen);
+
+		boolean finished = clock >= frameCount;
+		if (finished) {
+			synchronized (this) {
+				if (gen != generation) {
+					return;
+				}
+				stop();
+			}
+		} else if (shown == null) {
+			return;
+		}
+
+		final Frame f = shown;
+		final int d = dropped;
+		SwingUtilities.invokeLater(() -> {
+			if (f != null && (finished || gen == generation)) {
+				display.show(f.frame, f.input, f.output, d);
+				if (onScreen != null && onScreen != f) {
+					spare.offer(onScreen);
+				}
+				onScreen = f;
+			}
+			if (finished) {
+				display.stopped();
+			}
+		});
+	}
+}
@@ -20,17 +20,60 @@
 package pl.asie.nadeshicodec.util;
 
 public class DitherMatrix {
+	// error diffusion kernels, as (dx, dy, weight) triples
+	public static final int[] FLOYD_STEINBERG = new int[] {
+			1, 0, 7,
+			-1, 1, 3, 0, 1, 5, 1, 1, 1
+	};
+	public static final int[] ATKINSON = new int[] {
+			1, 0, 1, 2, 0, 1,
+			-1, 1, 1, 0, 1, 1, 1, 1, 1,
+			0, 2, 1
+	};
+
 	private final int[] matrix;
 	private final int width;
 
+	private final int[] diffusionKernel;
+	private final float diffusionScale;
+	private final float diffusionClamp;
+
 	public DitherMatrix() {
 		this(new int[0]);
 	}
 
 	public DitherMatrix(int[] data) {
+		this(data, null, 0, 0);
+	}
+
+	private DitherMatrix(int[] data, int[] diffusionKernel, float diffusionScale, float diffusionClamp) {
 		matrix = data;
 		width = (data.length <= 0 ? 0 : (int) Math.sqrt(data.length));
 		assert width*width == data.length;
+		this.diffusionKernel = diffusionKernel;
+		this.diffusionScale = diffusionScale;
+		this.diffusionClamp = diffusionClamp;
+	}
+
+	/**
+	 * Creates an error diffusion dither.
+	 *
+	 * @param kernel The kernel, as (dx, dy, weight) triples; dy must be 0 to 3, and dx must be positive if dy is 0.
+	 * @param divisor The sum the weights are divided by.
+	 * @param strength The fraction of the error which is propagated, 0 to 1.
+	 * @param clamp The largest error a pixel may carry, per channel (0-255). Lower values keep small
+	 *              changes in the source from cascading across the frame, which helps temporal stability.
+	 */
+	public static DitherMatrix diffusion(int[] kernel, int divisor, float strength, float clamp) {
+		return new DitherMatrix(new int[0], kernel, strength / divisor, clamp);
+	}
+
+	public static DitherMatrix floydSteinberg(float strength, float clamp) {
+		return diffusion(FLOYD_STEINBERG, 16, strength, clamp);
+	}
+
+	public static DitherMatrix atkinson(float strength, float clamp) {
+		return diffusion(ATKINSON, 8, strength, clamp);
 	}
 
 	public int[] getMatrix() {
@@ -44,4 +87,20 @@ public class DitherMatrix {
 	public boolean isEnabled() {
 		return width > 0;
 	}
+
+	public boolean isDiffusion() {
+		return diffusionKernel != null;
+	}
+
+	public int[] getDiffusionKernel() {
+		return diffusionKernel;
+	}
+
+	public float getDiffusionScale() {
+		return diffusionScale;
+	}
+
+	public float getDiffusionClamp() {
+		return diffusionClamp;
+	}
 }
@@ -22,11 +22,12 @@ package pl.asie.nadeshicodec.util;
 import pl.asie.nadeshicodec.util.colorspace.Colorspace;
 import pl.asie.nadeshicodec.util.colorspace.Colorspaces;
 import pl.asie.nadeshicodec.util.oc.OCImage;
-import pl.asie.nadeshicodec.util.oc.OCUtils;
+import pl.asie.nadeshicodec.util.oc.PaletteMetrics;
 
 import java.awt.image.BufferedImage;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.stream.IntStream;
 
 public final class ImageUtils {
 	private ImageUtils() {
@@ -96,24 +97,12 @@ public final class ImageUtils {
 		return v;
 	} */
 
-	private static int[] distances;
-
 	public static int cheapPaletteDistance(int a1, int a2, int[] palette) {
-		if (distances == null) {
-			distances = new int[65536];
-			for (int f = 0; f < 256; f++) {
-				for (int b = f + 1; b < 256; b++) {
-					distances[(b << 8) | f] = cheapColorDistance(OCUtils.getPaletteTier3()[b], OCUtils.getPaletteTier3()[f]);
-					distances[(f << 8) | b] = distances[(b << 8) | f];
-				}
-			}
-		}
+		return PaletteMetrics.of(palette).getPaletteDistance(a1, a2);
+	}
 
-		if (palette == OCUtils.getPaletteTier3()) {
-			return distances[(a1 << 8) | a2];
-		} else {
-			return cheapColorDistance(palette[a1], palette[a2]);
-		}
+	public static int cheapPaletteDistance(int a1, int a2, PaletteMetrics metrics) {
+		return metrics.getPaletteDistance(a1, a2);
 	}
 
 	private static int clamp(int x, int w) {
@@ -123,23 +112,30 @@ public final class ImageUtils {
 	}
 
 	public static BufferedImage medianFilter(BufferedImage image) {
-		BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
-
-		float[] yComp = new float[25];
-		float[] uComp = new float[25];
-		float[] vComp = new float[25];
-
-		for (int iy = 0; iy < result.getHeight(); iy++) {
-			for (int ix = 0; ix < result.getWidth(); ix++) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+		// convert once, then filter rows in parallel straight from the array
+		float[] yuv = new float[width * height * 3];
+		Colorspaces.convertFromRGB(image, Colorspace.YUV, yuv);
+
+		IntStream.range(0, height).parallel().forEach((iy) -> {
+			float[] yComp = new float[25];
+			float[] uComp = new float[25];
+			float[] vComp = new float[25];
+			float[] yuvOut = new float[3];
+			float[] tmp = new float[3];
+			int[] row = new int[width];
+
+			for (int ix = 0; ix < width; ix++) {
 				int ip = 0;
 				for (int iyo = -2; iyo <= 2; iyo++) {
 					for (int ixo = -2; ixo <= 2; ixo++, ip++) {
-						float[] yuv = Colorspaces.convertFromRGB(image.getRGB(
-								clamp(ix+ixo, result.getWidth()), clamp(iy+iyo, result.getHeight())
-						), Colorspace.YUV);
-						yComp[ip] = yuv[0];
-						uComp[ip] = yuv[1];
-						vComp[ip] = yuv[2];
+						int p = (clamp(iy+iyo, height) * width + clamp(ix+ixo, width)) * 3;
+						yComp[ip] = yuv[p];
+						uComp[ip] = yuv[p + 1];
+						vComp[ip] = yuv[p + 2];
 					}
 				}
 
@@ -148,13 +144,17 @@ public final class ImageUtils {
 				Arrays.sort(vComp);
 
 				if ((yComp[8] - yComp[0]) > 0.05f) {
-					result.setRGB(ix, iy, image.getRGB(ix, iy));
+					row[ix] = image.getRGB(ix, iy);
 				} else {
-					float[] yuvOut = new float[]{yComp[4], uComp[4], vComp[4]};
-					result.setRGB(ix, iy, Colorspaces.convertToRGB(yuvOut, Colorspace.YUV));
+					yuvOut[0] = yComp[4];
+					yuvOut[1] = uComp[4];
+					yuvOut[2] = vComp[4];
+					row[ix] = Colorspaces.convertToRGB(yuvOut, 0, Colorspace.YUV, tmp);
 				}
 			}
-		}
+
+			result.setRGB(0, iy, width, 1, row, 0, width);
+		});
 
 		return result;
 	}
@@ -164,66 +164,11 @@ public final class ImageUtils {
 	}
 
 	public static long getDistance(int bg1, int fg1, int q1, int bg2, int fg2, int q2, int[] palette) {
-		if (distances == null) {
-			distances = new int[65536];
-			for (int f = 0; f < 256; f++) {
-				for (int b = f + 1; b < 256; b++) {
-					distances[(b << 8) | f] = cheapColorDistance(OCUtils.getPaletteTier3()[b], OCUtils.getPaletteTier3()[f]);
-					distances[(f << 8) | b] = distances[(b << 8) | f];
-				}
-			}
-		}
-
-		if (bg1 == fg2 && fg1 == bg2) {
-			int t = fg2;
-			fg2 = bg2;
-			bg2 = t;
-			q2 ^= 0xFF;
-		}
-
-		long v = 0;
-		if (q1 != q2 || bg1 != bg2 || fg1 != fg2) {
-			if (palette == OCUtils.getPaletteTier3()) {
-				int distBgBg = distances[(bg1 << 8) | bg2];
-				int distFgFg = distances[(fg1 << 8) | fg2];
-
-				if (q1 == q2) {
-					int sb = MathUtils.setBits8(q1);
-					v += (sb * distFgFg) + (8 - sb) * distBgBg;
-				} else {
-					int distBgFg = distances[(bg1 << 8) | fg2];
-					int distFgBg = distances[(fg1 << 8) | bg2];
-
-					v = v + (MathUtils.setBits8(q1 & q2)) * distFgFg
-						  + (MathUtils.setBits8((q1^0xFF) & q2)) * distBgFg
-					      + (MathUtils.setBits8(q1 & (q2^0xFF))) * distFgBg
-					      + (MathUtils.setBits8((q1^0xFF) & (q2^0xFF))) * distBgBg;
-				}
-			} else {
-				int distBgBg = cheapColorDistance(palette[bg1], palette[bg2]);
-				int distBgFg = cheapColorDistance(palette[bg1], palette[fg2]);
-				int distFgBg = cheapColorDistance(palette[fg1], palette[bg2]);
-				int distFgFg = cheapColorDistance(palette[fg1], palette[fg2]);
-
-				for (int i = 0; i < 8; i++) {
-					boolean isFg1 = (((q1 >> i) & 1) != 0);
-					boolean isFg2 = (((q2 >> i) & 1) != 0);
-					v += isFg1 ? (isFg2 ? distFgFg : distFgBg) : (isFg2 ? distBgFg : distBgBg);
-				}
-			}
-		}
-
-		if (bg1 == bg2 && fg1 == fg2) {
-			if ((q1 << 2) == (q2 & 0xFC)) {
-				return v/3;
-			}
-
-			if ((q1 >> 2) == (q2 & 0x3F)) {
-				return v/3;
-			}
-		}
+		return PaletteMetrics.of(palette).getCellDistance(bg1, fg1, q1, bg2, fg2, q2);
+	}
 
-		return v;
+	public static long getDistance(int bg1, int fg1, int q1, int bg2, int fg2, int q2, PaletteMetrics metrics) {
+		return metrics.getCellDistance(bg1, fg1, q1, bg2, fg2, q2);
 	}
 
 	public static double getDistance(OCImage image, OCImage changedImage, int x, int y, int width, int height) {
@@ -238,7 +183,7 @@ public final class ImageUtils {
 				int fg2 = changedImage.getFG(ix, iy);
 				int q2 = image.getQuadrant(ix, iy);
 
-				v += getDistance(bg1, fg1, q1, bg2, fg2, q2, image.getPalette());
+				v += getDistance(bg1, fg1, q1, bg2, fg2, q2, image.getMetrics());
 			}
 		}
 		return v;
@@ -111,4 +111,70 @@ final class ColorspaceFunctions {
 				(float) Math.sqrt(3 - (v[0] / 255)) * v[2]
 		};
 	}
+
+	// allocation-free variants, reading and writing three consecutive floats
+
+	static void sRGBtoXYZ(float r, float g, float b, float[] out, int off) {
+		out[off] = (float) (0.4124564*r + 0.3575761*g + 0.1804375*b);
+		out[off + 1] = (float) (0.2126729*r + 0.7151522*g + 0.0721750*b);
+		out[off + 2] = (float) (0.0193339*r + 0.1191920*g + 0.9503041*b);
+	}
+
+	static void XYZtoLAB(float[] v, int off) {
+		float xr = v[off] / D65_WHITE[0];
+		float yr = v[off + 1] / D65_WHITE[1];
+		float zr = v[off + 2] / D65_WHITE[2];
+
+		float fx = (xr > E) ? (float) Math.cbrt(xr) : (K*xr + 16)/116.0f;
+		float fy = (yr > E) ? (float) Math.cbrt(yr) : (K*yr + 16)/116.0f;
+		float fz = (zr > E) ? (float) Math.cbrt(zr) : (K*zr + 16)/116.0f;
+
+		v[off] = 116*fy - 16;
+		v[off + 1] = 500*(fx - fy);
+		v[off + 2] = 200*(fy - fz);
+	}
+
+	static void LABtoXYZ(float[] v, int off, float[] out) {
+		float fy = (v[off] + 16)/116.0f;
+		float fx = v[off + 1]/500.0f + fy;
+		float fz = fy - v[off + 2]/200.0f;
+
+		float yr;
+		float xr = (fx > E_CBRT) ? (fx*fx*fx) : (116*fx - 16)/K;
+		float zr = (fz > E_CBRT) ? (fz*fz*fz) : (116*fz - 16)/K;
+		if (v[off] > KE) {
+			yr = ((v[off]+16)/116.0f);
+			yr *= yr * yr;
+		} else {
+			yr = v[off]/K;
+		}
+
+		out[0] = xr * D65_WHITE[0];
+		out[1] = yr * D65_WHITE[1];
+		out[2] = zr * D65_WHITE[2];
+	}
+
+	static void XYZtosRGB(float x, float y, float z, float[] out) {
+		out[0] = (float) (3.2404542*x + -1.5371385*y + -0.4985314*z);
+		out[1] = (float) (-0.9692660*x + 1.8760108*y + 0.0415560*z);
+		out[2] = (float) (0.0556434*x + -0.2040259*y + 1.0572252*z);
+	}
+
+	static void sRGBtoYUV(float r, float g, float b, float[] out, int off) {
+		out[off] = 0.299f * r + 0.587f * g + 0.114f * b;
+		out[off + 1] = -0.147f * r - 0.289f * g + 0.436f * b;
+		out[off + 2] = 0.615f * r - 0.515f * g - 0.100f * b;
+	}
+
+	static void YUVtosRGB(float y, float u, float v, float[] out) {
+		out[0] = y + 1.140f * v;
+		out[1] = y - 0.395f * u - 0.581f * v;
+		out[2] = y + 2.032f * u;
+	}
+
+	static void sRGBtoYIQ(float r, float g, float b, float[] out, int off) {
+		out[off] = 0.299f * r + 0.587f * g + 0.114f * b;
+		out[off + 1] = 0.596f * r - 0.274f * g - 0.322f * b;
+		out[off + 2] = 0.211f * r - 0.523f * g + 0.312f * b;
+	}
 }
@@ -25,8 +25,10 @@ import com.google.common.graph.MutableValueGraph;
 import com.google.common.graph.ValueGraph;
 import com.google.common.graph.ValueGraphBuilder;
 
+import java.awt.image.BufferedImage;
 import java.util.*;
 import java.util.function.Function;
+import java.util.stream.IntStream;
 
 public class Colorspaces {
 	private static boolean initialized = false;
@@ -108,17 +110,113 @@ public class Colorspaces {
 	}
 
 	public static int convertToRGB(float[] data, Colorspace from) {
-		float[] v = convert(data, from, Colorspace.sRGB);
-		return (asFF(v[0]) << 16) | (asFF(v[1]) << 8) | asFF(v[2]);
+		return convertToRGB(data, 0, from, new float[3]);
 	}
 
 	public static float[] convertFromRGB(int v, Colorspace to) {
-		float[] data = new float[] {
-				((v >> 16) & 0xFF) / 255.0f,
-				((v >> 8) & 0xFF) / 255.0f,
-				(v & 0xFF) / 255.0f
-		};
-		return convert(data, Colorspace.sRGB, to);
+		float[] data = new float[3];
+		convertFromRGB(v, to, data, 0);
+		return data;
+	}
+
+	/**
+	 * Converts a packed RGB value into three floats at out[off..off+2]
+	 * without allocating.
+	 */
+	public static void convertFromRGB(int v, Colorspace to, float[] out, int off) {
+		float r = ((v >> 16) & 0xFF) / 255.0f;
+		float g = ((v >> 8) & 0xFF) / 255.0f;
+		float b = (v & 0xFF) / 255.0f;
+
+		switch (to) {
+			case sRGB:
+				out[off] = r;
+				out[off + 1] = g;
+				out[off + 2] = b;
+				break;
+			case YUV:
+				ColorspaceFunctions.sRGBtoYUV(r, g, b, out, off);
+				break;
+			case YIQ:
+				ColorspaceFunctions.sRGBtoYIQ(r, g, b, out, off);
+				break;
+			case XYZ:
+				ColorspaceFunctions.sRGBtoXYZ(r, g, b, out, off);
+				break;
+			case LAB:
+				ColorspaceFunctions.sRGBtoXYZ(r, g, b, out, off);
+				ColorspaceFunctions.XYZtoLAB(out, off);
+				break;
+		}
+	}
+
+	/**
+	 * Converts three floats at data[off..off+2] into a packed RGB value,
+	 * using tmp (at least three floats) as scratch space.
+	 */
+	public static int convertToRGB(float[] data, int off, Colorspace from, float[] tmp) {
+		switch (from) {
+			case sRGB:
+				tmp[0] = data[off];
+				tmp[1] = data[off + 1];
+				tmp[2] = data[off + 2];
+				break;
+			case YUV:
+				ColorspaceFunctions.YUVtosRGB(data[off], data[off + 1], data[off + 2], tmp);
+				break;
+			case XYZ:
+				ColorspaceFunctions.XYZtosRGB(data[off], data[off + 1], data[off + 2], tmp);
+				break;
+			case LAB:
+				ColorspaceFunctions.LABtoXYZ(data, off, tmp);
+				ColorspaceFunctions.XYZtosRGB(tmp[0], tmp[1], tmp[2], tmp);
+				break;
+			default:
+				throw new RuntimeException("Could not convert from colorspace " + from + " to " + Colorspace.sRGB + "!");
+		}
+		return (asFF(tmp[0]) << 16) | (asFF(tmp[1]) << 8) | asFF(tmp[2]);
+	}
+
+	/**
+	 * Converts count packed RGB values into interleaved triples in out.
+	 */
+	public static void convertFromRGB(int[] rgb, int rgbOff, int count, Colorspace to, float[] out, int outOff) {
+		for (int i = 0; i < count; i++) {
+			convertFromRGB(rgb[rgbOff + i], to, out, outOff + i*3);
+		}
+	}
+
+	/**
+	 * Converts count interleaved triples from data into packed RGB values.
+	 */
+	public static void convertToRGB(float[] data, int dataOff, int count, Colorspace from, int[] out, int outOff) {
+		float[] tmp = new float[3];
+		for (int i = 0; i < count; i++) {
+			out[outOff + i] = convertToRGB(data, dataOff + i*3, from, tmp);
+		}
+	}
+
+	/**
+	 * Converts a whole frame into interleaved triples, one row per task.
+	 */
+	public static void convertFromRGB(BufferedImage image, Colorspace to, float[] out) {
+		int width = image.getWidth();
+		IntStream.range(0, image.getHeight()).parallel().forEach((y) -> {
+			int[] row = image.getRGB(0, y, width, 1, null, 0, width);
+			convertFromRGB(row, 0, width, to, out, y * width * 3);
+		});
+	}
+
+	/**
+	 * Converts a whole frame of interleaved triples back into an image, one row per task.
+	 */
+	public static void convertToRGB(float[] data, Colorspace from, BufferedImage image) {
+		int width = image.getWidth();
+		IntStream.range(0, image.getHeight()).parallel().forEach((y) -> {
+			int[] row = new int[width];
+			convertToRGB(data, y * width * 3, width, from, row, 0);
+			image.setRGB(0, y, width, 1, row, 0, width);
+		});
 	}
 
 	public static double getColorDistance(float[] c1, float[] c2) {
@@ -144,7 +242,7 @@ public class Colorspaces {
 				(f1[2] - f2[2]) * (f1[2] - f2[2]);
 	}
 
-	public static void init() {
+	public static synchronized void init() {
 		if (!initialized) {
 			initialized = true;
 			MutableValueGraph<Colorspace, Function<float[], float[]>> conversionGraph = ValueGraphBuilder.directed().allowsSelfLoops(false).build();
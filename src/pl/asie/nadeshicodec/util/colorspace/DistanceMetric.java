@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.asie.nadeshicodec.util.colorspace;
+
+import pl.asie.nadeshicodec.util.ImageUtils;
+
+/**
+ * Colour distance metrics which can back a palette distance table. All
+ * metrics are scaled so that black-to-white matches the redmean distance,
+ * which keeps the encoder's thresholds meaningful regardless of choice.
+ */
+public enum DistanceMetric {
+	REDMEAN(null, 1, 1, 1),
+	LAB(Colorspace.LAB, 1, 1, 1),
+	YUV(Colorspace.YUV, 4, 1, 1);
+
+	private final Colorspace colorspace;
+	private final double[] weights;
+
+	DistanceMetric(Colorspace colorspace, double w0, double w1, double w2) {
+		this.colorspace = colorspace;
+		this.weights = new double[] { w0, w1, w2 };
+	}
+
+	public Colorspace getColorspace() {
+		return colorspace;
+	}
+
+	private double getDistance(float[] a, float[] b) {
+		double d0 = a[0] - b[0];
+		double d1 = a[1] - b[1];
+		double d2 = a[2] - b[2];
+		return weights[0]*d0*d0 + weights[1]*d1*d1 + weights[2]*d2*d2;
+	}
+
+	public int[] createTable(int[] palette) {
+		int[] table = new int[65536];
+		if (colorspace == null) {
+			for (int f = 0; f < palette.length; f++) {
+				for (int b = f + 1; b < palette.length; b++) {
+					table[(b << 8) | f] = table[(f << 8) | b] = ImageUtils.cheapColorDistance(palette[b], palette[f]);
+				}
+			}
+			return table;
+		}
+
+		float[][] coords = new float[palette.length][];
+		for (int i = 0; i < palette.length; i++) {
+			coords[i] = Colorspaces.convertFromRGB(palette[i], colorspace);
+		}
+
+		double scale = ImageUtils.cheapColorDistance(0x000000, 0xFFFFFF) / getDistance(
+				Colorspaces.convertFromRGB(0x000000, colorspace),
+				Colorspaces.convertFromRGB(0xFFFFFF, colorspace)
+		);
+
+		for (int f = 0; f < palette.length; f++) {
+			for (int b = f + 1; b < palette.length; b++) {
+				table[(b << 8) | f] = table[(f << 8) | b] = (int) Math.round(getDistance(coords[b], coords[f]) * scale);
+			}
+		}
+		return table;
+	}
+}
@@ -47,6 +47,10 @@ import java.util.Optional;
  *
  * no width
  *
+ * 0x30 - set+color block; byte x, byte y, byte width, byte height, byte bg, byte fg,
+ * then width * height quadrants, row by row, in the RLE form of 0x22; drawn as rows
+ * or, when taller than wide, as columns
+ *
  * the +color variants are clever as they can auto-invert
  */
 
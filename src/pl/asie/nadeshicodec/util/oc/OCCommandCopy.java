@@ -53,7 +53,7 @@ public class OCCommandCopy implements IOCCommand {
 						to.getBG(px, py),
 						to.getFG(px, py),
 						to.getQuadrant(px, py),
-						from.getPalette()
+						from.getMetrics()
 				) - ImageUtils.getDistance(
 						from.getBG(px, py),
 						from.getFG(px, py),
@@ -61,7 +61,7 @@ public class OCCommandCopy implements IOCCommand {
 						to.getBG(px, py),
 						to.getFG(px, py),
 						to.getQuadrant(px, py),
-						from.getPalette()
+						from.getMetrics()
 				);
 			}
 		}
@@ -80,7 +80,7 @@ public class OCCommandCopy implements IOCCommand {
 						targetImage.getBG(px, py),
 						targetImage.getFG(px, py),
 						targetImage.getQuadrant(px, py),
-						targetImage.getPalette()
+						targetImage.getMetrics()
 				);
 				double distCurrentTarget = ImageUtils.getDistance(
 						currImage.getBG(px, py),
@@ -89,7 +89,7 @@ public class OCCommandCopy implements IOCCommand {
 						targetImage.getBG(px, py),
 						targetImage.getFG(px, py),
 						targetImage.getQuadrant(px, py),
-						targetImage.getPalette()
+						targetImage.getMetrics()
 				);
 
 				v += (distCurrentTarget - distTargetChanged);
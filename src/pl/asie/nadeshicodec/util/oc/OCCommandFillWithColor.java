@@ -132,7 +132,7 @@ public class OCCommandFillWithColor implements IOCCommand {
 
 					long v = ImageUtils.getDistance(
 							color, 0, 0,
-							tb, tf, tq, targetImage.getPalette()
+							tb, tf, tq, targetImage.getMetrics()
 					);
 
 					if (tq != 0 && tq != 255) {
@@ -159,13 +159,13 @@ public class OCCommandFillWithColor implements IOCCommand {
 
 				/* long distTargetChanged = ImageUtils.getDistance(
 						color, 0, 0,
-						tb, tf, tq, targetImage.getPalette()
+						tb, tf, tq, targetImage.getMetrics()
 				); */
 				/* long distCurrentTarget = ImageUtils.getDistance(
 						currImage.getBG(tx, ty),
 						currImage.getFG(tx, ty),
 						currImage.getQuadrant(tx, ty),
-						tb, tf, tq, targetImage.getPalette()
+						tb, tf, tq, targetImage.getMetrics()
 				); */
 				long distCurrentTarget = currTargetDelta.getDistance(tx, ty, targetImage);
 
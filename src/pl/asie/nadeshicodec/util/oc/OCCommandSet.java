@@ -51,7 +51,7 @@ public class OCCommandSet implements IOCCommand {
 					targetImage.getBG(tx, ty),
 					targetImage.getFG(tx, ty),
 					targetImage.getQuadrant(tx, ty),
-					targetImage.getPalette()
+					targetImage.getMetrics()
 			);
 			double distCurrentTarget = ImageUtils.getDistance(
 					currImage.getBG(tx, ty),
@@ -60,7 +60,7 @@ public class OCCommandSet implements IOCCommand {
 					targetImage.getBG(tx, ty),
 					targetImage.getFG(tx, ty),
 					targetImage.getQuadrant(tx, ty),
-					targetImage.getPalette()
+					targetImage.getMetrics()
 			);
 
 			v += distCurrentTarget - distTargetChanged;
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.asie.nadeshicodec.util.oc;
+
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import pl.asie.nadeshicodec.util.ImageUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Optional;
+
+/**
+ * Two-colour block of quadrants, drawn as one gpu.set per row or per column,
+ * whichever is fewer; the colour switch is shared between them.
+ */
+public class OCCommandSetBlock implements IOCCommand {
+	private final int x, y;
+	private final int width, height;
+	private final int[] quadrants;
+	private final int bg, fg;
+
+	/**
+	 * @param quadrants Row-major, width * height entries.
+	 */
+	public OCCommandSetBlock(int x, int y, int width, int height, int[] quadrants, int bg, int fg) {
+		if (quadrants.length != width * height) {
+			throw new IllegalArgumentException("Expected " + (width * height) + " quadrants, got " + quadrants.length + "!");
+		}
+
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		if (fg > bg) {
+			int t = fg;
+			fg = bg;
+			bg = t;
+			int[] qold = quadrants;
+			quadrants = new int[qold.length];
+			for (int i = 0; i < qold.length; i++) {
+				quadrants[i] = qold[i] ^ 0xFF;
+			}
+		} else if (bg == fg) {
+			throw new RuntimeException("Should not happen!");
+		}
+
+		this.quadrants = quadrants;
+		this.bg = bg;
+		this.fg = fg;
+	}
+
+	private int updateContext(OCCommandContext context, boolean simulate) {
+		if (bg == context.getCurrBg() && fg == context.getCurrFg()) {
+			return 0;
+		} else if (bg == context.getCurrFg() && fg == context.getCurrBg()) {
+			return 0;
+		} else if (bg == context.getCurrBg()) {
+			if (!simulate) context.setCurrFg(fg);
+			return 2;
+		} else if (fg == context.getCurrBg()) {
+			if (!simulate) context.setCurrFg(bg);
+			return 2;
+		} else if (fg == context.getCurrFg()) {
+			if (!simulate) context.setCurrBg(bg);
+			return 2;
+		} else if (bg == context.getCurrFg()) {
+			if (!simulate) context.setCurrBg(fg);
+			return 2;
+		} else {
+			if (!simulate) context.setCurrBg(bg);
+			if (!simulate) context.setCurrFg(fg);
+			return 4;
+		}
+	}
+
+	private OCImage targetImageCache;
+	private long distTargetChangedTotal;
+
+	@Override
+	public double applyDistance(OCCommandContext context, OCImage currImage, OCImage targetImage, OCImageDelta currTargetDelta) {
+		if (targetImageCache != targetImage) {
+			targetImageCache = targetImage;
+			distTargetChangedTotal = 0;
+
+			int i = 0;
+			for (int ty = y; ty < y + height; ty++) {
+				for (int tx = x; tx < x + width; tx++, i++) {
+					distTargetChangedTotal += ImageUtils.getDistance(
+							bg, fg, quadrants[i],
+							targetImage.getBG(tx, ty), targetImage.getFG(tx, ty), targetImage.getQuadrant(tx, ty),
+							targetImage.getMetrics()
+					);
+				}
+			}
+		}
+		updateContext(context, false);
+
+		long v = 0;
+		boolean hasChange = false;
+		int i = 0;
+		for (int ty = y; ty < y + height; ty++) {
+			for (int tx = x; tx < x + width; tx++, i++) {
+				if (!hasChange) {
+					hasChange = ImageUtils.hasDistance(
+							bg, fg, quadrants[i],
+							currImage.getBG(tx, ty),
+							currImage.getFG(tx, ty),
+							currImage.getQuadrant(tx, ty)
+					);
+				}
+				v += currTargetDelta.getDistance(tx, ty, targetImage);
+			}
+		}
+		return !hasChange ? Double.MIN_VALUE : v - distTargetChangedTotal;
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getBg() {
+		return bg;
+	}
+
+	public int getFg() {
+		return fg;
+	}
+
+	public int[] getQuadrantArray() {
+		return quadrants;
+	}
+
+	/**
+	 * @return Whether the player draws this block column by column.
+	 */
+	public boolean isVertical() {
+		return height > width;
+	}
+
+	@Override
+	public int getCost() {
+		return Math.min(width, height);
+	}
+
+	@Override
+	public int getCost(OCCommandContext context) {
+		return getCost() + updateContext(context, true);
+	}
+
+	@Override
+	public void apply(OCCommandContext context, OCImage image) {
+		updateContext(context, false);
+
+		int i = 0;
+		for (int ty = y; ty < y + height; ty++) {
+			for (int tx = x; tx < x + width; tx++, i++) {
+				image.set(tx, ty, bg, fg, quadrants[i]);
+			}
+		}
+	}
+
+	@Override
+	public void write(OutputStream stream) throws IOException {
+		stream.write(0x30);
+		stream.write(x);
+		stream.write(y);
+		stream.write(width);
+		stream.write(height);
+		stream.write(bg);
+		stream.write(fg);
+		OCCommandSetWithColor.writeRLE(stream, quadrants);
+	}
+
+	@Override
+	public Optional<IntIterator> getChangedPositions(int width, int height) {
+		return Optional.of(new Iterator(width));
+	}
+
+	public class Iterator implements IntIterator {
+		private final int cwidth;
+		private int i;
+
+		public Iterator(int width) {
+			this.cwidth = width;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return i < quadrants.length;
+		}
+
+		@Override
+		public int nextInt() {
+			int tx = x + (i % width);
+			int ty = y + (i / width);
+			i++;
+			return ty * cwidth + tx;
+		}
+	}
+}
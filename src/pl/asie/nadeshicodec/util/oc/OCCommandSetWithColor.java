@@ -96,7 +96,7 @@ public class OCCommandSetWithColor implements IOCCommand {
 
 				distTargetChangedTotal += ImageUtils.getDistance(
 						bg, fg, quadrant,
-						tb, tf, tq, targetImage.getPalette()
+						tb, tf, tq, targetImage.getMetrics()
 				);
 			}
 
@@ -125,7 +125,7 @@ public class OCCommandSetWithColor implements IOCCommand {
 					targetImage.getBG(tx, ty),
 					targetImage.getFG(tx, ty),
 					targetImage.getQuadrant(tx, ty),
-					targetImage.getPalette()
+					targetImage.getMetrics()
 			); */
 			/* long distCurrentTarget = ImageUtils.getDistance(
 					currImage.getBG(tx, ty),
@@ -134,7 +134,7 @@ public class OCCommandSetWithColor implements IOCCommand {
 					targetImage.getBG(tx, ty),
 					targetImage.getFG(tx, ty),
 					targetImage.getQuadrant(tx, ty),
-					targetImage.getPalette()
+					targetImage.getMetrics()
 			); */
 			long distCurrentTarget = currTargetDelta.getDistance(tx, ty, targetImage);
 
@@ -203,6 +203,25 @@ public class OCCommandSetWithColor implements IOCCommand {
 		stream.write(bg);
 		stream.write(fg);
 
+		writeRLE(stream, quadrants);
+	}
+
+	private static void writeLiterals(OutputStream stream, int[] quadrants, int from, int count) throws IOException {
+		while (count > 0) {
+			int n = Math.min(count, 0xA0);
+			stream.write(n);
+			for (int j = 0; j < n; j++) {
+				stream.write(quadrants[from + j]);
+			}
+			from += n;
+			count -= n;
+		}
+	}
+
+	/**
+	 * Writes quadrants in the RLE form of the 0x22/0x23 commands, including the end marker.
+	 */
+	static void writeRLE(OutputStream stream, int[] quadrants) throws IOException {
 		int rlePos = 0;
 		int repeats = 0;
 		int lastValue = -1;
@@ -223,12 +242,7 @@ public class OCCommandSetWithColor implements IOCCommand {
 			if (writeNow) {
 				// write
 				int nonRepeats = (i - rlePos) - repeats;
-				if (nonRepeats > 0) {
-					stream.write(nonRepeats);
-					for (int j = 0; j < nonRepeats; j++) {
-						stream.write(quadrants[rlePos + j]);
-					}
-				}
+				writeLiterals(stream, quadrants, rlePos, nonRepeats);
 				rlePos += nonRepeats;
 				if (repeats > 0) {
 					stream.write(0xA0 + repeats);
@@ -243,12 +257,7 @@ public class OCCommandSetWithColor implements IOCCommand {
 		}
 
 		int nonRepeats = (quadrants.length - rlePos) - repeats;
-		if (nonRepeats > 0) {
-			stream.write(nonRepeats);
-			for (int j = 0; j < nonRepeats; j++) {
-				stream.write(quadrants[rlePos + j]);
-			}
-		}
+		writeLiterals(stream, quadrants, rlePos, nonRepeats);
 		rlePos += nonRepeats;
 		if (repeats > 0) {
 			stream.write(0xA0 + repeats);
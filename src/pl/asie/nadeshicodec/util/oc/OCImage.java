@@ -25,15 +25,21 @@ public class OCImage {
 	private final int widthChars;
 	private final int heightChars;
 	private final int[] palette;
+	private final PaletteMetrics metrics;
 
 	private final byte[] quadrants;
 	private final byte[] bgColors;
 	private final byte[] fgColors;
 
 	public OCImage(int widthChars, int heightChars, int[] palette) {
+		this(widthChars, heightChars, PaletteMetrics.of(palette));
+	}
+
+	public OCImage(int widthChars, int heightChars, PaletteMetrics metrics) {
 		this.widthChars = widthChars;
 		this.heightChars = heightChars;
-		this.palette = palette;
+		this.palette = metrics.getPalette();
+		this.metrics = metrics;
 
 		this.quadrants = new byte[widthChars * heightChars];
 		this.bgColors = new byte[widthChars * heightChars];
@@ -41,7 +47,7 @@ public class OCImage {
 	}
 
 	public OCImage copy() {
-		OCImage newImage = new OCImage(widthChars, heightChars, palette);
+		OCImage newImage = new OCImage(widthChars, heightChars, metrics);
 		System.arraycopy(quadrants, 0, newImage.quadrants, 0, widthChars * heightChars);
 		System.arraycopy(bgColors, 0, newImage.bgColors, 0, widthChars * heightChars);
 		System.arraycopy(fgColors, 0, newImage.fgColors, 0, widthChars * heightChars);
@@ -92,25 +98,21 @@ public class OCImage {
 	}
 
 	public BufferedImage getPreview() {
-		BufferedImage image = new BufferedImage(widthChars * 2, heightChars * 4, BufferedImage.TYPE_INT_RGB);
-
-		for (int y = 0; y < heightChars; y++) {
-			for (int x = 0; x < widthChars; x++) {
-				int qp = y * widthChars + x;
-				for (int p = 0; p < 8; p++) {
-					boolean v = ((((int) quadrants[qp]) >> (7 - p)) & 1) != 0;
-					image.setRGB(
-						x*2 + (p & 1), y*4 + (p >> 1),
-						v ? palette[((int) fgColors[qp]) & 0xFF] : palette[((int) bgColors[qp]) & 0xFF]
-					);
-				}
-			}
-		}
-
-		return image;
+		return OCImageRenderer.render(this, (BufferedImage) null);
+	}
+
+	/**
+	 * Draws the preview into reuse when it fits, saving the allocation.
+	 */
+	public BufferedImage getPreview(BufferedImage reuse) {
+		return OCImageRenderer.render(this, reuse);
 	}
 
 	public int[] getPalette() {
 		return palette;
 	}
+
+	public PaletteMetrics getMetrics() {
+		return metrics;
+	}
 }
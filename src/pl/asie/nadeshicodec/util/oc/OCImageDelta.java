@@ -36,6 +36,26 @@ public class OCImageDelta {
 		return data[y*image.getWidthChars()+x];
 	}
 
+	public long getTotalDistance() {
+		long v = 0;
+		for (long d : data) {
+			v += d;
+		}
+		return v;
+	}
+
+	public int getChangedCount() {
+		int v = 0;
+		for (long d : data) {
+			if (d != 0) v++;
+		}
+		return v;
+	}
+
+	public int getSize() {
+		return data.length;
+	}
+
 	private void recalc(OCImage currImage, OCImage targetImage, int x, int y) {
 		data[y*targetImage.getWidthChars()+x] = ImageUtils.getDistance(
 				currImage.getBG(x, y),
@@ -44,7 +64,7 @@ public class OCImageDelta {
 				targetImage.getBG(x, y),
 				targetImage.getFG(x, y),
 				targetImage.getQuadrant(x, y),
-				targetImage.getPalette()
+				targetImage.getMetrics()
 		);
 	}
 
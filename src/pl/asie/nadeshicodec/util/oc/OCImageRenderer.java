@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.asie.nadeshicodec.util.oc;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.stream.IntStream;
+
+/**
+ * Renders OCImages straight into an int[] RGB raster, expanding each cell
+ * through a table of the 8 pixel masks of all 256 quadrant values.
+ */
+public final class OCImageRenderer {
+	// MASKS[q * 8 + p] is -1 where pixel p (2 wide, 4 high) of quadrant q shows the foreground
+	private static final int[] MASKS = new int[256 * 8];
+	// below this many cells, splitting rows across threads costs more than it saves
+	private static final int PARALLEL_THRESHOLD = 4000;
+
+	static {
+		for (int q = 0; q < 256; q++) {
+			for (int p = 0; p < 8; p++) {
+				MASKS[q * 8 + p] = ((q >> (7 - p)) & 1) != 0 ? -1 : 0;
+			}
+		}
+	}
+
+	private OCImageRenderer() {
+
+	}
+
+	/**
+	 * @param raster At least stride * image.getHeightPixels() entries of 0xRRGGBB.
+	 */
+	public static void render(OCImage image, int[] raster, int stride) {
+		IntStream rows = IntStream.range(0, image.getHeightChars());
+		if (image.getWidthChars() * image.getHeightChars() >= PARALLEL_THRESHOLD) {
+			rows = rows.parallel();
+		}
+		rows.forEach((y) -> renderRow(image, raster, stride, y));
+	}
+
+	private static void renderRow(OCImage image, int[] raster, int stride, int y) {
+		int[] palette = image.getPalette();
+		int row = y * 4 * stride;
+
+		for (int x = 0; x < image.getWidthChars(); x++) {
+			int bg = palette[image.getBG(x, y)];
+			int diff = bg ^ palette[image.getFG(x, y)];
+			int m = image.getQuadrant(x, y) * 8;
+			int pos = row + x * 2;
+
+			for (int p = 0; p < 8; p += 2) {
+				raster[pos] = bg ^ (diff & MASKS[m + p]);
+				raster[pos + 1] = bg ^ (diff & MASKS[m + p + 1]);
+				pos += stride;
+			}
+		}
+	}
+
+	/**
+	 * @param target A TYPE_INT_RGB image of the right size to draw into, or null.
+	 * @return target, or a new image if it could not be reused.
+	 */
+	public static BufferedImage render(OCImage image, BufferedImage target) {
+		if (target == null || target.getType() != BufferedImage.TYPE_INT_RGB
+				|| target.getWidth() != image.getWidthPixels() || target.getHeight() != image.getHeightPixels()) {
+			target = new BufferedImage(image.getWidthPixels(), image.getHeightPixels(), BufferedImage.TYPE_INT_RGB);
+		}
+
+		int[] raster = ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
+		render(image, raster, target.getWidth());
+		return target;
+	}
+}
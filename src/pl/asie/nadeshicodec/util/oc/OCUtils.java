@@ -140,61 +140,101 @@ public final class OCUtils {
 						(b1 - b2) * (b1 - b2)) );
 	}
 
-	// based on the fast pngview algorithm
-	public static OCImage from(BufferedImage image, int[] palette, DitherMatrix dither) {
-		OCImage img = new OCImage((image.getWidth() + 1) / 2, (image.getHeight() + 3) / 4, palette);
+	/**
+	 * Picks the best background/foreground pair for a cell's eight pixels.
+	 *
+	 * @return (bg << 8) | fg; both are equal if one colour fits best.
+	 */
+	private static int selectColors(int[] pixelsRGB, int[] palette, int[] irDiff) {
+		IntSet colors = new IntOpenHashSet();
+		for (int p = 0; p < 8; p++) {
+			for (int v : getClosest(pixelsRGB[p], palette))
+				colors.add(v);
+		}
 
-		IntStream.rangeClosed(0, img.getHeightChars() - 1).forEach((y) -> {
-			int[] pixelsRGB = new int[8];
-			int[] irDiff = new int[8];
+		int[] colorsA = colors.toIntArray();
+		int bestI = 0;
+		int bestJ = 0;
+		int bestDistance = Integer.MAX_VALUE;
+
+		for (int i = 0; i < colorsA.length - 1; i++) {
+			int ir = palette[colorsA[i]];
+			int selfDist = 0;
+			for (int p = 0; p < 8; p++) {
+				irDiff[p] = ImageUtils.cheapColorDistance(pixelsRGB[p], ir);
+				selfDist += irDiff[p];
+			}
 
-			for (int x = 0; x < img.getWidthChars(); x++) {
-				IntSet colors = new IntOpenHashSet();
+			if (selfDist < bestDistance) {
+				bestI = i;
+				bestJ = i;
+				bestDistance = selfDist;
+			}
+
+			for (int j = i + 1; j < colorsA.length; j++) {
+				int jr = palette[colorsA[j]];
+				int distance = 0;
 				for (int p = 0; p < 8; p++) {
-					pixelsRGB[p] = image.getRGB(x*2 + (p&1), y*4 + (p>>1));
-					for (int v : getClosest(pixelsRGB[p], palette))
-						colors.add(v);
+					distance += Math.min(irDiff[p], ImageUtils.cheapColorDistance(pixelsRGB[p], jr));
+					if (distance >= bestDistance) {
+						break;
+					}
 				}
 
-				int[] colorsA = colors.toIntArray();
-				int bestI = 0;
-				int bestJ = 0;
-				int bestDistance = Integer.MAX_VALUE;
+				if (distance < bestDistance) {
+					bestI = i;
+					bestJ = j;
+					bestDistance = distance;
+				}
+			}
+		}
 
-				for (int i = 0; i < colorsA.length - 1; i++) {
-					int ir = palette[colorsA[i]];
-					int selfDist = 0;
-					for (int p = 0; p < 8; p++) {
-						irDiff[p] = ImageUtils.cheapColorDistance(pixelsRGB[p], ir);
-						selfDist += irDiff[p];
-					}
+		return (colorsA[bestI] << 8) | colorsA[bestJ];
+	}
 
-					if (selfDist < bestDistance) {
-						bestI = i;
-						bestJ = i;
-						bestDistance = selfDist;
-					}
+	public static OCImage from(BufferedImage image, int[] palette, DitherMatrix dither) {
+		return from(image, PaletteMetrics.of(palette), dither);
+	}
 
-					for (int j = i + 1; j < colorsA.length; j++) {
-						int jr = palette[colorsA[j]];
-						int distance = 0;
-						for (int p = 0; p < 8; p++) {
-							distance += Math.min(irDiff[p], ImageUtils.cheapColorDistance(pixelsRGB[p], jr));
-							if (distance >= bestDistance) {
-								break;
-							}
-						}
+	// based on the fast pngview algorithm
+	public static OCImage from(BufferedImage image, PaletteMetrics metrics, DitherMatrix dither) {
+		return from(image, metrics, dither, null, 0);
+	}
 
-						if (distance < bestDistance) {
-							bestI = i;
-							bestJ = j;
-							bestDistance = distance;
-						}
-					}
+	/**
+	 * Quantizes a frame, keeping the previous frame's choice for a cell whenever
+	 * it is at most tolerance worse (in average distance per pixel) than the new
+	 * best one. This stops near-identical input from flipping colour pairs or
+	 * inverting quadrants between frames.
+	 *
+	 * @param previous The previous frame, or null.
+	 */
+	public static OCImage from(BufferedImage image, PaletteMetrics metrics, DitherMatrix dither, OCImage previous, int tolerance) {
+		if (previous != null && (previous.getWidthChars() != (image.getWidth() + 1) / 2 || previous.getHeightChars() != (image.getHeight() + 3) / 4)) {
+			previous = null;
+		}
+
+		if (dither.isDiffusion()) {
+			return fromDiffused(image, metrics, dither, previous, tolerance);
+		}
+
+		OCImage prev = previous;
+
+		int[] palette = metrics.getPalette();
+		OCImage img = new OCImage((image.getWidth() + 1) / 2, (image.getHeight() + 3) / 4, metrics);
+
+		IntStream.rangeClosed(0, img.getHeightChars() - 1).forEach((y) -> {
+			int[] pixelsRGB = new int[8];
+			int[] irDiff = new int[8];
+
+			for (int x = 0; x < img.getWidthChars(); x++) {
+				for (int p = 0; p < 8; p++) {
+					pixelsRGB[p] = image.getRGB(x*2 + (p&1), y*4 + (p>>1));
 				}
 
-				int bgColor = colorsA[bestI];
-				int fgColor = colorsA[bestJ];
+				int pair = selectColors(pixelsRGB, palette, irDiff);
+				int bgColor = pair >> 8;
+				int fgColor = pair & 0xFF;
 				if (bgColor == fgColor) {
 					img.set(x, y, bgColor, 0, 0);
 				} else {
@@ -252,6 +292,10 @@ public final class OCUtils {
 					img.set(x, y, bgColor, fgColor, q);
 				}
 
+				if (prev != null && isWithinTolerance(pixelsRGB, palette, prev, x, y, getCellError(pixelsRGB, palette, img.getBG(x, y), img.getFG(x, y), img.getQuadrant(x, y)), tolerance)) {
+					img.set(x, y, prev.getBG(x, y), prev.getFG(x, y), prev.getQuadrant(x, y));
+				}
+
 				//Int2IntOpenHashMap pixelCount = new Int2IntOpenHashMap();
 				//pixelCount.defaultReturnValue(0);
 
@@ -341,5 +385,143 @@ public final class OCUtils {
 
 		return img;
 	}
-}
 
+	/**
+	 * Error diffusion variant of {@link #from(BufferedImage, PaletteMetrics, DitherMatrix)}.
+	 *
+	 * Cells are quantized along diagonals of x + 3y: every cell a kernel can push error
+	 * into is then on a later diagonal, and no two cells of one diagonal touch the same
+	 * pixels, so each diagonal runs in parallel. Error aimed at the already finished cell
+	 * to the left is dropped.
+	 */
+	private static OCImage fromDiffused(BufferedImage image, PaletteMetrics metrics, DitherMatrix dither, OCImage previous, int tolerance) {
+		int[] palette = metrics.getPalette();
+		OCImage img = new OCImage((image.getWidth() + 1) / 2, (image.getHeight() + 3) / 4, metrics);
+		int cw = img.getWidthChars();
+		int ch = img.getHeightChars();
+		int pw = cw * 2;
+		int ph = ch * 4;
+
+		// source pixels, edge-padded to whole cells
+		int[] src = new int[pw * ph];
+		for (int y = 0; y < ph; y++) {
+			int sy = Math.min(y, image.getHeight() - 1);
+			image.getRGB(0, sy, image.getWidth(), 1, src, y * pw, pw);
+			for (int x = image.getWidth(); x < pw; x++) {
+				src[y * pw + x] = src[y * pw + x - 1];
+			}
+		}
+
+		float[] error = new float[pw * ph * 3];
+		for (int t = 0; t < cw + (ch - 1) * 3; t++) {
+			int diagonal = t;
+			int yMin = Math.max(0, (t - cw + 3) / 3);
+			int yMax = Math.min(ch - 1, t / 3);
+			IntStream.rangeClosed(yMin, yMax).parallel().forEach((y) ->
+				quantizeDiffusedCell(img, src, error, pw, ph, diagonal - y * 3, y, palette, dither, previous, tolerance)
+			);
+		}
+
+		return img;
+	}
+
+	private static int clampChannel(float v) {
+		if (v <= 0) return 0;
+		else if (v >= 255) return 255;
+		else return Math.round(v);
+	}
+
+	private static int getDiffusedPixel(int[] src, float[] error, int i) {
+		int v = src[i];
+		return (clampChannel(((v >> 16) & 0xFF) + error[i * 3]) << 16)
+				| (clampChannel(((v >> 8) & 0xFF) + error[i * 3 + 1]) << 8)
+				| clampChannel((v & 0xFF) + error[i * 3 + 2]);
+	}
+
+	private static void quantizeDiffusedCell(OCImage img, int[] src, float[] error, int pw, int ph, int x, int y, int[] palette, DitherMatrix dither, OCImage previous, int tolerance) {
+		int[] pixelsRGB = new int[8];
+		int[] irDiff = new int[8];
+		for (int p = 0; p < 8; p++) {
+			pixelsRGB[p] = getDiffusedPixel(src, error, (y*4 + (p>>1)) * pw + x*2 + (p&1));
+		}
+
+		int pair = selectColors(pixelsRGB, palette, irDiff);
+		int bgColor = pair >> 8;
+		int fgColor = pair & 0xFF;
+
+		// -1 picks the nearer colour per pixel, otherwise the previous frame's quadrants are kept
+		int forcedQ = -1;
+		if (previous != null) {
+			long newError = 0;
+			for (int p = 0; p < 8; p++) {
+				newError += Math.min(ImageUtils.cheapColorDistance(pixelsRGB[p], palette[bgColor]), ImageUtils.cheapColorDistance(pixelsRGB[p], palette[fgColor]));
+			}
+
+			if (isWithinTolerance(pixelsRGB, palette, previous, x, y, newError, tolerance)) {
+				bgColor = previous.getBG(x, y);
+				fgColor = previous.getFG(x, y);
+				forcedQ = previous.getQuadrant(x, y);
+			}
+		}
+
+		int[] kernel = dither.getDiffusionKernel();
+		float scale = dither.getDiffusionScale();
+		float clamp = dither.getDiffusionClamp();
+		int q = 0;
+
+		for (int p = 0; p < 8; p++) {
+			int px = x*2 + (p&1);
+			int py = y*4 + (p>>1);
+			// earlier pixels of this cell may have pushed error into this one
+			int v = getDiffusedPixel(src, error, py * pw + px);
+			boolean isFg = forcedQ >= 0
+					? ((forcedQ >> (7 - p)) & 1) != 0
+					: bgColor != fgColor && ImageUtils.cheapColorDistance(v, palette[fgColor]) < ImageUtils.cheapColorDistance(v, palette[bgColor]);
+			int c = palette[isFg ? fgColor : bgColor];
+			q = (q << 1) | (isFg ? 1 : 0);
+
+			int er = ((v >> 16) & 0xFF) - ((c >> 16) & 0xFF);
+			int eg = ((v >> 8) & 0xFF) - ((c >> 8) & 0xFF);
+			int eb = (v & 0xFF) - (c & 0xFF);
+			if (er == 0 && eg == 0 && eb == 0) {
+				continue;
+			}
+
+			for (int k = 0; k < kernel.length; k += 3) {
+				int tx = px + kernel[k];
+				int ty = py + kernel[k + 1];
+				if (tx < 0 || tx >= pw || ty >= ph || (ty / 4 == y && tx / 2 < x)) {
+					continue;
+				}
+
+				float w = kernel[k + 2] * scale;
+				int ti = (ty * pw + tx) * 3;
+				error[ti] = Math.max(-clamp, Math.min(clamp, error[ti] + er * w));
+				error[ti + 1] = Math.max(-clamp, Math.min(clamp, error[ti + 1] + eg * w));
+				error[ti + 2] = Math.max(-clamp, Math.min(clamp, error[ti + 2] + eb * w));
+			}
+		}
+
+		if (forcedQ >= 0) {
+			img.set(x, y, bgColor, fgColor, forcedQ);
+		} else if (bgColor == fgColor) {
+			img.set(x, y, bgColor, 0, 0);
+		} else {
+			img.set(x, y, bgColor, fgColor, q);
+		}
+	}
+
+	private static long getCellError(int[] pixelsRGB, int[] palette, int bg, int fg, int q) {
+		long error = 0;
+		for (int p = 0; p < 8; p++) {
+			boolean isFg = ((q >> (7 - p)) & 1) != 0;
+			error += ImageUtils.cheapColorDistance(pixelsRGB[p], palette[isFg ? fg : bg]);
+		}
+		return error;
+	}
+
+	private static boolean isWithinTolerance(int[] pixelsRGB, int[] palette, OCImage previous, int x, int y, long newError, int tolerance) {
+		long prevError = getCellError(pixelsRGB, palette, previous.getBG(x, y), previous.getFG(x, y), previous.getQuadrant(x, y));
+		return prevError <= newError + (long) tolerance * 8;
+	}
+}
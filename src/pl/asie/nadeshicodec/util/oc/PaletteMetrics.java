@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2018 Adrian Siekierka
+ *
+ * This file is part of Nadeshicodec.
+ *
+ * Nadeshicodec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nadeshicodec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nadeshicodec.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.asie.nadeshicodec.util.oc;
+
+import pl.asie.nadeshicodec.util.MathUtils;
+import pl.asie.nadeshicodec.util.colorspace.DistanceMetric;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precomputed, immutable distance tables for a palette under a given
+ * {@link DistanceMetric}. Instances are built once per palette and metric
+ * and are safe to share between threads and encoders.
+ */
+public final class PaletteMetrics {
+	private static final Map<int[], Map<DistanceMetric, PaletteMetrics>> METRICS = new ConcurrentHashMap<>();
+	private static volatile PaletteMetrics lastMetrics;
+	// for every (q1, q2) pair: fg/fg, bg/fg, fg/bg and bg/bg pixel counts, one nibble each
+	private static final short[] MASK_COUNTS;
+
+	static {
+		MASK_COUNTS = new short[65536];
+		for (int q1 = 0; q1 < 256; q1++) {
+			for (int q2 = 0; q2 < 256; q2++) {
+				int ff = MathUtils.setBits8(q1 & q2);
+				int bf = MathUtils.setBits8((q1 ^ 0xFF) & q2);
+				int fb = MathUtils.setBits8(q1 & (q2 ^ 0xFF));
+				int bb = MathUtils.setBits8((q1 ^ 0xFF) & (q2 ^ 0xFF));
+				MASK_COUNTS[(q1 << 8) | q2] = (short) (ff | (bf << 4) | (fb << 8) | (bb << 12));
+			}
+		}
+	}
+
+	private final int[] palette;
+	private final DistanceMetric metric;
+	private final int[] distances;
+
+	private PaletteMetrics(int[] palette, DistanceMetric metric) {
+		if (palette.length > 256) {
+			throw new IllegalArgumentException("Palette too large: " + palette.length);
+		}
+
+		this.palette = palette;
+		this.metric = metric;
+		this.distances = metric.createTable(palette);
+	}
+
+	public static PaletteMetrics of(int[] palette) {
+		return of(palette, DistanceMetric.REDMEAN);
+	}
+
+	public static PaletteMetrics of(int[] palette, DistanceMetric metric) {
+		// nearly every lookup is for the same palette, skip the map for it
+		PaletteMetrics metrics = lastMetrics;
+		if (metrics == null || metrics.palette != palette || metrics.metric != metric) {
+			metrics = METRICS.computeIfAbsent(palette, p -> new ConcurrentHashMap<>())
+					.computeIfAbsent(metric, m -> new PaletteMetrics(palette, m));
+			lastMetrics = metrics;
+		}
+		return metrics;
+	}
+
+	public int[] getPalette() {
+		return palette;
+	}
+
+	public DistanceMetric getMetric() {
+		return metric;
+	}
+
+	public int getPaletteDistance(int a1, int a2) {
+		return distances[(a1 << 8) | a2];
+	}
+
+	public long getCellDistance(int bg1, int fg1, int q1, int bg2, int fg2, int q2) {
+		if (bg1 == fg2 && fg1 == bg2) {
+			int t = fg2;
+			fg2 = bg2;
+			bg2 = t;
+			q2 ^= 0xFF;
+		}
+
+		long v = 0;
+		if (q1 != q2 || bg1 != bg2 || fg1 != fg2) {
+			int counts = MASK_COUNTS[(q1 << 8) | q2];
+			v = (counts & 0xF) * distances[(fg1 << 8) | fg2]
+					+ ((counts >> 4) & 0xF) * distances[(bg1 << 8) | fg2]
+					+ ((counts >> 8) & 0xF) * distances[(fg1 << 8) | bg2]
+					+ ((counts >> 12) & 0xF) * distances[(bg1 << 8) | bg2];
+		}
+
+		if (bg1 == bg2 && fg1 == fg2) {
+			if ((q1 << 2) == (q2 & 0xFC)) {
+				return v/3;
+			}
+
+			if ((q1 >> 2) == (q2 & 0x3F)) {
+				return v/3;
+			}
+		}
+
+		return v;
+	}
+}